@@ -0,0 +1,153 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Measures how fast the classes of a directory compile, and how that scales with the number of
+ * worker threads and the size of the corpus. Each configuration compiles the corpus repeated a
+ * number of times on that many workers, from memory and without writing or inlining. The workers
+ * live through every round of the configuration, so each keeps its tokenizer, engine and buffers as
+ * the workers of a long compile do. Rounds run first to warm up the JIT and are thrown away, then
+ * the measured rounds give the throughput, the latency of each file, the time spent in GC and the
+ * bytes the compiles allocated per second of the measured rounds. The results are tab separated, a
+ * line per configuration, so runs on different versions can be compared.
+ */
+public final class Benchmark {
+    private static final int[] COPIES = {1, 4};
+    private static final int MIN_ROUNDS = 5;
+    private static final long WARM_UP_NANOS = 1_000_000_000L;
+    private static final long MEASURE_NANOS = 2_000_000_000L;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // how long one compile took and what it allocated
+    private record Sample(long nanos, long bytes) {}
+
+    private record Result(double linesPerSecond, double classesPerSecond, double p50, double p99,
+                          double gcPerSecond, double allocatedPerSecond) {}
+
+    private Benchmark() {}
+
+    public static void run(Path directory, PrintStream out) throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(file -> Files.isRegularFile(file) && JackAnalyzer.isSource(file.toString())).sorted()
+                    .toList();
+        }
+        if (files.isEmpty()) throw new IOException("No .jack files in " + directory);
+        List<Pipeline.Source> sources = new ArrayList<>();
+        List<ClassIndex.ClassInfo> infos = new ArrayList<>();
+        long lines = 0;
+        for (Path file : files) {
+            String text = Pipeline.readText(file);
+            sources.add(new Pipeline.Source(file.toString(), text));
+            infos.add(ClassIndex.scan(file.toString()));
+            lines += text.lines().count();
+        }
+        ClassIndex classIndex = ClassIndex.of(infos);
+
+        List<Integer> threadCounts = new ArrayList<>();
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads < processors; threads *= 2) threadCounts.add(threads);
+        threadCounts.add(processors);
+
+        out.println("threads\tcopies\tfiles\tlines/s\tclasses/s\tp50 ms\tp99 ms\tgc ms/s\talloc MB/s\tspeedup");
+        for (int copies : COPIES) {
+            double single = 0;
+            for (int threads : threadCounts) {
+                Result result = measure(sources, classIndex, lines, copies, threads);
+                if (threads == 1) single = result.classesPerSecond();
+                out.printf("%d\t%d\t%d\t%.0f\t%.0f\t%.3f\t%.3f\t%.1f\t%.1f\t%.2f%n", threads, copies,
+                        sources.size() * copies, result.linesPerSecond(), result.classesPerSecond(), result.p50(),
+                        result.p99(), result.gcPerSecond(), result.allocatedPerSecond(),
+                        result.classesPerSecond() / single);
+            }
+        }
+    }
+
+    private static Result measure(List<Pipeline.Source> sources, ClassIndex classIndex, long lines, int copies,
+                                  int threads) throws IOException {
+        List<Callable<Sample>> compiles = new ArrayList<>();
+        for (int i = 0; i < sources.size() * copies; i++) {
+            Pipeline.Source source = sources.get(i % sources.size());
+            compiles.add(() -> compile(source, classIndex));
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        long gc;
+        double seconds;
+        int rounds = 0;
+        List<Sample> samples = new ArrayList<>();
+        try {
+            long warmUpEnd = System.nanoTime() + WARM_UP_NANOS;
+            for (int round = 0; round < MIN_ROUNDS || System.nanoTime() < warmUpEnd; round++) {
+                round(workers, compiles);
+            }
+
+            long gcStart = gcMillis();
+            long start = System.nanoTime();
+            while (rounds < MIN_ROUNDS || System.nanoTime() - start < MEASURE_NANOS) {
+                samples.addAll(round(workers, compiles));
+                rounds++;
+            }
+            seconds = (System.nanoTime() - start) / 1e9;
+            gc = gcMillis() - gcStart;
+        } finally {
+            workers.shutdown();
+        }
+        long allocated = samples.stream().mapToLong(Sample::bytes).sum();
+
+        long[] sorted = samples.stream().mapToLong(Sample::nanos).toArray();
+        Arrays.sort(sorted);
+        return new Result(lines * copies * rounds / seconds, compiles.size() * rounds / seconds,
+                percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6, gc / seconds,
+                allocated / seconds / (1 << 20));
+    }
+
+    // Compiles every input once, waiting for all of them
+    private static List<Sample> round(ExecutorService workers, List<Callable<Sample>> compiles) throws IOException {
+        List<Sample> samples = new ArrayList<>();
+        try {
+            for (Future<Sample> sample : workers.invokeAll(compiles)) samples.add(sample.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Benchmark interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) throw ioException;
+            throw new IOException(e.getCause());
+        }
+        return samples;
+    }
+
+    private static Sample compile(Pipeline.Source source, ClassIndex classIndex) throws IOException {
+        long allocated = THREADS.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        JackAnalyzer.compile(source.filename(), source.text(), classIndex);
+        long nanos = System.nanoTime() - start;
+        return new Sample(nanos, THREADS.getCurrentThreadAllocatedBytes() - allocated);
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)];
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, bean.getCollectionTime());
+        }
+        return millis;
+    }
+}
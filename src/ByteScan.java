@@ -0,0 +1,75 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Searches over the bytes of a source eight at a time, reading them as one long (SWAR). A byte of a
+ * word is compared to a character by testing the bytes of the word xor that character for zero,
+ * with no carry from one byte to the next, so each match sets the high bit of its own byte only.
+ * Words are read little endian, so the first match is the lowest set bit. The last bytes that don't
+ * fill a word are scanned one at a time. Non-ASCII text is UTF-8, whose bytes never look like ASCII.
+ */
+final class ByteScan {
+    private static final VarHandle WORD = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long SPACE = broadcast(' ');
+    private static final long NEW_LINE = broadcast('\n');
+    private static final long TAB = broadcast('\t');
+    private static final long RETURN = broadcast('\r');
+    private static final long SLASH = broadcast('/');
+
+    private ByteScan() {}
+
+    private static long broadcast(char c) {
+        return (c & 0xFFL) * 0x0101010101010101L;
+    }
+
+    // High bit set in each byte of word that is 0
+    private static long zeros(long word) {
+        return ~(((word & LOW_BITS) + LOW_BITS) | word | LOW_BITS);
+    }
+
+    private static long word(byte[] text, int position) {
+        return (long) WORD.get(text, position);
+    }
+
+    static boolean isWhitespace(byte c) {
+        return c == ' ' | c == '\n' | c == '\t' | c == '\r';
+    }
+
+    // First byte at or after position that isn't a space, tab or line break, or length
+    static int skipWhitespace(byte[] text, int position, int length) {
+        for (; position + Long.BYTES <= length; position += Long.BYTES) {
+            long word = word(text, position);
+            long whitespace = zeros(word ^ SPACE) | zeros(word ^ NEW_LINE) | zeros(word ^ TAB) | zeros(word ^ RETURN);
+            long other = ~whitespace & HIGH_BITS;
+            if (other != 0) return position + (Long.numberOfTrailingZeros(other) >>> 3);
+        }
+        while (position < length && isWhitespace(text[position])) position++;
+        return position;
+    }
+
+    // First new line at or after position, or length
+    static int lineEnd(byte[] text, int position, int length) {
+        return indexOf(text, NEW_LINE, (byte) '\n', position, length);
+    }
+
+    // Position just past the first */ whose * is at or after position, or length
+    static int commentEnd(byte[] text, int position, int length) {
+        int slash = indexOf(text, SLASH, (byte) '/', position + 1, length);
+        while (slash < length && text[slash - 1] != '*') {
+            slash = indexOf(text, SLASH, (byte) '/', slash + 1, length);
+        }
+        return Math.min(slash + 1, length);
+    }
+
+    private static int indexOf(byte[] text, long pattern, byte c, int position, int length) {
+        for (; position + Long.BYTES <= length; position += Long.BYTES) {
+            long found = zeros(word(text, position) ^ pattern);
+            if (found != 0) return position + (Long.numberOfTrailingZeros(found) >>> 3);
+        }
+        while (position < length && text[position] != c) position++;
+        return position;
+    }
+}
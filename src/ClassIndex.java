@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+/**
+ * Declarations of every class in a program: field and static counts, and the kind, return type and
+ * parameter count of each subroutine. Built before code generation by scanning only class headers
+ * and subroutine signatures, one file per thread, and never changed afterwards. Subroutine bodies
+ * are skipped by matching their braces, without lexing them.
+ */
+public final class ClassIndex {
+    public record Subroutine(Tokenizer.KeyWord kind, String returnType, int nParameters) {}
+
+    public record ClassInfo(String name, int fieldCount, int staticCount, Map<String, Subroutine> subroutines) {}
+
+    private final Map<String, ClassInfo> classes;
+
+    private ClassIndex(Map<String, ClassInfo> classes) {
+        this.classes = Collections.unmodifiableMap(classes);
+    }
+
+    public static ClassIndex build(List<String> filenames) throws IOException {
+        try {
+            return of(filenames.parallelStream().map(ClassIndex::scanUnchecked).toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // From classes that were already scanned
+    public static ClassIndex of(List<ClassInfo> infos) {
+        Map<String, ClassInfo> classes = new HashMap<>();
+        for (ClassInfo info : infos) {
+            classes.put(info.name(), info);
+        }
+        return new ClassIndex(classes);
+    }
+
+    public ClassInfo get(String className) {
+        return classes.get(className);
+    }
+
+    // null if the class or the subroutine isn't in the program
+    public Subroutine subroutine(String className, String subroutineName) {
+        ClassInfo info = classes.get(className);
+        return info == null ? null : info.subroutines().get(subroutineName);
+    }
+
+    private static ClassInfo scanUnchecked(String filename) {
+        try {
+            return scan(filename);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static ClassInfo scan(String filename) throws IOException {
+        return scan(new Tokenizer(filename));
+    }
+
+    public static ClassInfo scan(Tokenizer tokenizer) throws IOException {
+        tokenizer.advance();    // class
+        tokenizer.advance();
+        String className = tokenizer.identifier();
+        tokenizer.advance();    // {
+        tokenizer.advance();
+
+        int fieldCount = 0, staticCount = 0;
+        while (tokenizer.tokenType() == Tokenizer.TokenType.KEYWORD &
+                (tokenizer.keyWord() == Tokenizer.KeyWord.STATIC | tokenizer.keyWord() == Tokenizer.KeyWord.FIELD)) {
+            boolean isField = tokenizer.keyWord() == Tokenizer.KeyWord.FIELD;
+            tokenizer.advance();    // field or static
+            tokenizer.advance();    // type
+            tokenizer.advance();    // name
+            int count = 1;
+            while (isSymbol(tokenizer, ',')) {
+                tokenizer.advance();    // ,
+                tokenizer.advance();    // name
+                count++;
+            }
+            tokenizer.advance();    // ;
+            if (isField) fieldCount += count;
+            else staticCount += count;
+        }
+
+        Map<String, Subroutine> subroutines = new LinkedHashMap<>();
+        while (tokenizer.tokenType() == Tokenizer.TokenType.KEYWORD &
+                (tokenizer.keyWord() == Tokenizer.KeyWord.CONSTRUCTOR |
+                        tokenizer.keyWord() == Tokenizer.KeyWord.FUNCTION |
+                        tokenizer.keyWord() == Tokenizer.KeyWord.METHOD)) {
+            Tokenizer.KeyWord kind = tokenizer.keyWord();
+            tokenizer.advance();
+            String returnType = tokenizer.identifier();
+            tokenizer.advance();
+            String name = tokenizer.identifier();
+            tokenizer.advance();    // (
+            tokenizer.advance();
+            int nParameters = 0;
+            while (!isSymbol(tokenizer, ')')) {
+                tokenizer.advance();    // type
+                tokenizer.advance();    // name
+                nParameters++;
+                if (isSymbol(tokenizer, ',')) tokenizer.advance();
+            }
+            tokenizer.advance();    // )
+            subroutines.put(name, new Subroutine(kind, returnType, nParameters));
+
+            // skip the body
+            tokenizer.skipBlock();
+            tokenizer.advance();    // }
+        }
+        return new ClassInfo(className, fieldCount, staticCount, subroutines);
+    }
+
+    private static boolean isSymbol(Tokenizer tokenizer, char symbol) {
+        return tokenizer.tokenType() == Tokenizer.TokenType.SYMBOL && tokenizer.symbol() == symbol;
+    }
+}
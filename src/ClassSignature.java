@@ -0,0 +1,42 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The parts of a class other classes depend on: its field count and the kind and VM argument count
+ * of each subroutine. Small subroutines also carry a hash of their code, since callers may inline them.
+ */
+public record ClassSignature(String className, int fieldCount, Map<String, String> subroutines) {
+    // larger than anything Inliner copies, counting the function command, prologue and return
+    private static final int INLINE_SIZE = 12;
+
+    public static ClassSignature of(CompilationEngine compilationEngine, List<VMCommand> commands) {
+        Map<String, String> subroutines = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : compilationEngine.subroutines.entrySet()) {
+            subroutines.put(entry.getKey(), entry.getValue());
+        }
+
+        for (int start = 0; start < commands.size(); start++) {
+            if (commands.get(start).type() != VMCommand.Type.FUNCTION) continue;
+            int end = start + 1;
+            while (end < commands.size() && commands.get(end).type() != VMCommand.Type.FUNCTION) end++;
+            if (end - start <= INLINE_SIZE) {
+                String name = commands.get(start).name();
+                String subroutine = name.substring(name.indexOf('.') + 1);
+                List<String> body = new ArrayList<>();
+                for (VMCommand command : commands.subList(start, end)) body.add(command.toString());
+                subroutines.computeIfPresent(subroutine, (key, entry) ->
+                        entry + " " + DependencyGraph.hash(String.join("\n", body)));
+            }
+            start = end - 1;
+        }
+        return new ClassSignature(compilationEngine.className,
+                compilationEngine.classTable.varCount(SymbolTable.KIND.FIELD), subroutines);
+    }
+
+    // What a call to Class.subroutine depends on, null if this class doesn't have it
+    public String entry(String subroutine) {
+        return subroutines.get(subroutine);
+    }
+}
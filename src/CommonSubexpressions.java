@@ -0,0 +1,89 @@
+import java.util.*;
+
+/**
+ * Common subexpression elimination within the basic blocks of one function.
+ * When the same pure expression is computed again in a block, and nothing it reads was written in
+ * between, the first result is kept in a new local and the repeats push that local instead.
+ */
+public class CommonSubexpressions {
+    // what a multiply or divide call costs compared to one command
+    private static final int CALL_COST = 20;
+    // saving a value in a local takes a pop and a push, and the local is set to 0 on every call
+    private static final int SAVE_COST = 3;
+
+    private CommonSubexpressions() {}
+
+    /**
+     * Returns the function with repeated expressions replaced. The function starts with its function
+     * command, whose local count grows by one for each expression kept.
+     */
+    public static List<VMCommand> eliminate(List<VMCommand> function) {
+        if (function.isEmpty() || function.get(0).type() != VMCommand.Type.FUNCTION) return function;
+        List<VMCommand> commands = new ArrayList<>(function);
+        while (true) {
+            List<ExpressionAnalysis.Occurrence> best = bestRepeats(commands, new ExpressionAnalysis(commands));
+            if (best == null) return commands;
+            commands = replace(commands, best);
+        }
+    }
+
+    // The repeats of one expression that save the most, null if none save anything
+    private static List<ExpressionAnalysis.Occurrence> bestRepeats(List<VMCommand> commands,
+                                                                   ExpressionAnalysis analysis) {
+        Map<String, List<ExpressionAnalysis.Occurrence>> byExpression = new LinkedHashMap<>();
+        for (ExpressionAnalysis.Occurrence occurrence : analysis.occurrences()) {
+            if (!occurrence.pure()) continue;
+            String key = occurrence.block() + "\n" + ExpressionAnalysis.text(commands, occurrence);
+            byExpression.computeIfAbsent(key, k -> new ArrayList<>()).add(occurrence);
+        }
+
+        List<ExpressionAnalysis.Occurrence> best = null;
+        int bestSaving = 0;
+        for (List<ExpressionAnalysis.Occurrence> same : byExpression.values()) {
+            int i = 0;
+            while (i < same.size()) {
+                ExpressionAnalysis.Occurrence first = same.get(i);
+                List<ExpressionAnalysis.Occurrence> repeats = new ArrayList<>(List.of(first));
+                i++;
+                while (i < same.size() && !analysis.written(first.reads(), first.end(), same.get(i).start())) {
+                    if (same.get(i).start() >= repeats.get(repeats.size() - 1).end()) repeats.add(same.get(i));
+                    i++;
+                }
+                int size = first.end() - first.start();
+                int saving = (size - 1 + first.calls() * CALL_COST) * (repeats.size() - 1) - SAVE_COST;
+                if (repeats.size() > 1 && saving > bestSaving) {
+                    best = repeats;
+                    bestSaving = saving;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static List<VMCommand> replace(List<VMCommand> commands, List<ExpressionAnalysis.Occurrence> repeats) {
+        VMCommand function = commands.get(0);
+        int local = function.index();
+        ExpressionAnalysis.Occurrence first = repeats.get(0);
+        List<VMCommand> result = new ArrayList<>(commands.size());
+        result.add(VMCommand.function(function.name(), local + 1));
+        int next = 1;
+        for (int i = 1; i < commands.size(); i++) {
+            if (i == first.end()) {
+                result.add(VMCommand.pop(VMWriter.SEGMENT.LOCAL, local));
+                result.add(VMCommand.push(VMWriter.SEGMENT.LOCAL, local));
+            }
+            if (next < repeats.size() && i == repeats.get(next).start()) {
+                result.add(VMCommand.push(VMWriter.SEGMENT.LOCAL, local));
+                i = repeats.get(next).end() - 1;
+                next++;
+                continue;
+            }
+            result.add(commands.get(i));
+        }
+        if (first.end() == commands.size()) {
+            result.add(VMCommand.pop(VMWriter.SEGMENT.LOCAL, local));
+            result.add(VMCommand.push(VMWriter.SEGMENT.LOCAL, local));
+        }
+        return result;
+    }
+}
@@ -1,11 +1,18 @@
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
 
 public class CompilationEngine {
-    FileWriter output;
+    Writer output;
     Tokenizer tokenizer;
     SymbolTable classTable;
     SymbolTable subroutineTable;
@@ -14,8 +21,31 @@ public class CompilationEngine {
     int length;
     int label;
     String functionName;
+    // label at the start of the subroutine, once a tail call jumps back to it
+    String entryLabel;
+    ClassIndex classIndex;
+    // counts from a run of the program, null to compile without
+    Profile profile;
+    // first labels of the loops around the statement being compiled, innermost first
+    final Deque<String> loops = new ArrayDeque<>();
+    // static holding each string literal pooled in the class
+    final Map<String, Integer> pooledStrings = new HashMap<>();
+    int poolLabel;
+    // kind and VM argument count of each subroutine, what other classes depend on
+    final Map<String, String> subroutines = new LinkedHashMap<>();
+    // code of subroutines compiled before, null to always compile
+    SubroutineCache cache;
+    // fields and statics of the class, part of the cache key of each subroutine
+    String classLayout;
+    // what isMethod answered for each subroutine called by the one being compiled
+    final Map<String, Boolean> methods = new TreeMap<>();
 
     private static final Map<Tokenizer.KeyWord, String> KEYMAP = new HashMap<>();
+    // operators whose operands can be evaluated in either order
+    private static final String COMMUTATIVE = "+*&|=";
+    // OS functions that only read the string they are passed
+    private static final Set<String> READ_ONLY_STRINGS = Set.of("Output.printString", "Keyboard.readLine",
+            "Keyboard.readInt");
     static {
         KEYMAP.put(Tokenizer.KeyWord.CLASS, "class");
         KEYMAP.put(Tokenizer.KeyWord.CONSTRUCTOR, "constructor");
@@ -40,15 +70,51 @@ public class CompilationEngine {
         KEYMAP.put(Tokenizer.KeyWord.RETURN, "return");
     }
 
-    public CompilationEngine(Tokenizer tokenizer, FileWriter output) {
+    public CompilationEngine(Tokenizer tokenizer, Writer output) {
         this.output = output;
         this.tokenizer = tokenizer;
         this.vmWriter = new VMWriter(output);
+        this.classTable = new SymbolTable();
+        this.subroutineTable = new SymbolTable();
+    }
+
+    // Compiles another class from now on, keeping the tables and buffers of the last one
+    public void reset(Tokenizer tokenizer, Writer output) {
+        this.output = output;
+        this.tokenizer = tokenizer;
+        vmWriter.reset(output);
+        className = null;
+        functionName = null;
+        entryLabel = null;
+        length = 0;
+        label = 0;
+        subroutines.clear();
+        methods.clear();
+        loops.clear();
+        pooledStrings.clear();
+        poolLabel = 0;
+    }
+
+    // Declarations of the other classes, used to tell methods from functions when lowering calls
+    public void setClassIndex(ClassIndex classIndex) {
+        this.classIndex = classIndex;
+    }
+
+    // Counts of a run of the program, to lay out branches and pool strings where it pays off
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    // Subroutines found unchanged in the cache are copied from it instead of compiled, not when profiled
+    public void setCache(SubroutineCache cache) {
+        this.cache = cache;
     }
 
     public void compileClass() throws IOException {
-        this.classTable = new SymbolTable();
-        this.subroutineTable = new SymbolTable();
+        classTable.reset();
+        subroutineTable.reset();
+        pooledStrings.clear();
+        poolLabel = 0;
 
         // class
         tokenizer.advance();
@@ -65,6 +131,7 @@ public class CompilationEngine {
                         tokenizer.keyWord() == Tokenizer.KeyWord.FIELD)) {
             compileClassVarDec();
         }
+        classLayout = className + "\n" + classTable.layout();
 
         while (tokenizer.hasMoreTokens() &
                 (tokenizer.tokenType() != Tokenizer.TokenType.SYMBOL &
@@ -115,7 +182,29 @@ public class CompilationEngine {
 
     public void compileSubroutine() throws IOException {
         String subroutineName;
+        String kind = KEYMAP.get(tokenizer.keyWord());
         subroutineTable.reset();
+        entryLabel = null;
+        // labels only have to be unique in their function, so they start over and stay the same when
+        // the subroutines before this one change
+        label = 0;
+        poolLabel = 0;
+
+        String cacheKey = null;
+        if (cache != null && profile == null) {
+            Tokenizer.Checkpoint start = tokenizer.checkpoint();
+            cacheKey = subroutineKey();
+            SubroutineCache.Entry cached = cache.get(cacheKey, className);
+            if (cached != null && isUpToDate(cached)) {
+                subroutines.put(cached.signature().substring(0, cached.signature().indexOf(' ')),
+                        cached.signature().substring(cached.signature().indexOf(' ') + 1));
+                vmWriter.writeCompiled(cached.code());
+                cache.hit();
+                return;
+            }
+            tokenizer.rewind(start);
+            methods.clear();
+        }
 
         // constructor/method/function
         // Add this to symbol table if method, don't do this for function or constructor
@@ -151,11 +240,52 @@ public class CompilationEngine {
 
         // save this to call after getting num vars for local
         this.functionName = className + "." + subroutineName;
+        subroutines.put(subroutineName, kind + " " + subroutineTable.varCount(SymbolTable.KIND.ARG));
 
         // closing )
         tokenizer.advance();
 
         compileSubroutineBody();
+        String code = vmWriter.endFunction();
+        if (cacheKey != null) {
+            cache.put(cacheKey, new SubroutineCache.Entry(className,
+                    subroutineName + " " + subroutines.get(subroutineName), new TreeMap<>(methods), code));
+        }
+    }
+
+    /**
+     * Hash of the tokens from the current one through the closing } of the subroutine, and of the
+     * fields and statics of the class. Leaves the tokenizer after the subroutine.
+     */
+    private String subroutineKey() throws IOException {
+        StringBuilder sb = new StringBuilder(classLayout);
+        int depth = 0;
+        boolean inBody = false;
+        while (!inBody || depth > 0) {
+            sb.append(tokenizer.tokenType().ordinal()).append(' ').append(tokenizer.identifier()).append('\n');
+            if (tokenizer.tokenType() == Tokenizer.TokenType.SYMBOL) {
+                if (tokenizer.symbol() == '{') {
+                    depth++;
+                    inBody = true;
+                } else if (tokenizer.symbol() == '}') {
+                    depth--;
+                }
+            }
+            tokenizer.advance();
+        }
+        return DependencyGraph.hash(sb.toString());
+    }
+
+    // True when the classes the cached subroutine calls still have the kinds it was compiled with
+    private boolean isUpToDate(SubroutineCache.Entry cached) {
+        for (Map.Entry<String, Boolean> method : cached.methods().entrySet()) {
+            int dot = method.getKey().indexOf('.');
+            if (isMethod(method.getKey().substring(0, dot), method.getKey().substring(dot + 1), true) !=
+                    method.getValue()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public void compileParameterList() throws IOException {
@@ -163,7 +293,12 @@ public class CompilationEngine {
         // process 0 or more parameters
         while (tokenizer.tokenType() != Tokenizer.TokenType.SYMBOL & tokenizer.symbol() != ')') {
             // type
-            type = KEYMAP.get(tokenizer.keyWord());
+            // can be a keyword or an identifier (if it's a class type)
+            if (tokenizer.tokenType() == Tokenizer.TokenType.KEYWORD) {
+                type = KEYMAP.get(tokenizer.keyWord());
+            } else {
+                type = tokenizer.identifier();
+            }
             tokenizer.advance();
             // name
             name = tokenizer.identifier();
@@ -191,6 +326,7 @@ public class CompilationEngine {
 
         // handle constructor or method
         // if method, this is in symbol table
+        int setupStart = vmWriter.mark();
         if (subroutineTable.kindOf("this") != SymbolTable.KIND.NONE) {
             // need to set THIS, which was passed as the first arg
             vmWriter.writePush(VMWriter.SEGMENT.ARGUMENT, 0);
@@ -205,13 +341,32 @@ public class CompilationEngine {
             vmWriter.writeCall("Memory.alloc", 1);
             vmWriter.writePop(VMWriter.SEGMENT.POINTER, 0);
         }
+        int bodyStart = vmWriter.mark();
 
         compileStatements();
 
+        // A method that never uses this doesn't need THIS set. Nor does a constructor of a class
+        // without fields that doesn't use the object, returning this counts as using it
+        boolean noFields = classTable.varCount(SymbolTable.KIND.FIELD) == 0;
+        if (bodyStart > setupStart && (subroutineTable.kindOf("this") != SymbolTable.KIND.NONE || noFields)) {
+            List<VMCommand> body = vmWriter.cut(bodyStart);
+            if (!usesThis(body)) vmWriter.cut(setupStart);
+            vmWriter.writeCommands(body);
+        }
+
         // closing }
         tokenizer.advance();
     }
 
+    // Reads a field, or THIS itself to pass or return it
+    private static boolean usesThis(List<VMCommand> commands) {
+        for (VMCommand command : commands) {
+            if (command.segment() == VMWriter.SEGMENT.THIS) return true;
+            if (command.segment() == VMWriter.SEGMENT.POINTER && command.index() == 0) return true;
+        }
+        return false;
+    }
+
     public void compileVarDec() throws IOException {
         this.length = 0;
         // var
@@ -271,43 +426,56 @@ public class CompilationEngine {
         // check class table
         VMWriter.SEGMENT assigneeSegment;
         int index;
-        String type;
         String varName = tokenizer.identifier();
         if (classTable.kindOf(tokenizer.identifier()) != SymbolTable.KIND.NONE) {
             assigneeSegment = VMWriter.KIND_TO_SEGMENT.get(classTable.kindOf(varName));
             index = classTable.indexOf(varName);
-            type = classTable.typeOf(varName);
         } else {
             assigneeSegment = VMWriter.KIND_TO_SEGMENT.get(subroutineTable.kindOf(varName));
             index = subroutineTable.indexOf(varName);
-            type = subroutineTable.typeOf(varName);
         }
         tokenizer.advance(); // varName
-        // Check if it's an Array and it is indexing. Skips this if just reassigning the variable to a different array
+        // Check if it's indexing. Skips this if just reassigning the variable to a different array
         // arr = Array.new()
-        if (Objects.equals(type, "Array") & tokenizer.tokenType() == Tokenizer.TokenType.SYMBOL &
-                tokenizer.symbol() == '[') {
-
-            // push address of a[i] to stack
-            // don't use handleIdentifier, because it will push the value at a[i] not the address
-            vmWriter.writePush(assigneeSegment, index);     // base addr a
-            // now we need to i
+        if (tokenizer.tokenType() == Tokenizer.TokenType.SYMBOL & tokenizer.symbol() == '[') {
             tokenizer.advance();    // [
+            int indexStart = vmWriter.mark();
             compileExpression();
-            vmWriter.writeArithmetic(VMWriter.ARITHMETIC_COMMAND.ADD);  // top of stack has addr arr[i]
+            List<VMCommand> arrayIndex = vmWriter.cut(indexStart);
             tokenizer.advance();    // ]
 
             tokenizer.advance();    // =
 
+            int valueStart = vmWriter.mark();
             compileExpression();    // handles right side
-
-            // the top of the stack has the right side arr[i] = rightside
-            // we need the next element on the stack which is the address for arr[i]
-            // store right side in temp
-            vmWriter.writePop(VMWriter.SEGMENT.TEMP, 0);    // temp[0] = right side, top of stack is addr arr[i]
-            vmWriter.writePop(VMWriter.SEGMENT.POINTER, 1); // THAT points to addr arr[i]
-            vmWriter.writePush(VMWriter.SEGMENT.TEMP, 0);   // place right side back to top of stack
-            vmWriter.writePop(VMWriter.SEGMENT.THAT, 0);    // arr[i] = right side
+            List<VMCommand> value = vmWriter.cut(valueStart);
+
+            // The right side can go first when swapping the order can't change what either side sees:
+            // a call in one side must not be able to change memory the other side reads
+            boolean indexCalls = hasSideEffects(arrayIndex);
+            boolean valueCalls = hasSideEffects(value);
+            boolean addressReadsMemory = readsMemory(arrayIndex) |
+                    assigneeSegment == VMWriter.SEGMENT.STATIC | assigneeSegment == VMWriter.SEGMENT.THIS;
+            if (!(indexCalls & valueCalls) & !(valueCalls & addressReadsMemory) &
+                    !(indexCalls & readsMemory(value))) {
+                // right side is below the address on the stack, so THAT is set last and nothing can clobber it
+                vmWriter.writeCommands(value);
+                int offset = writeArrayAddress(assigneeSegment, index, arrayIndex);
+                vmWriter.writePop(VMWriter.SEGMENT.POINTER, 1); // THAT points to arr[i]
+                vmWriter.writePop(VMWriter.SEGMENT.THAT, offset);   // arr[i] = right side
+            } else {
+                // push address of a[i] first, the right side can change THAT
+                int offset = writeArrayAddress(assigneeSegment, index, arrayIndex);
+                vmWriter.writeCommands(value);
+
+                // the top of the stack has the right side arr[i] = rightside
+                // we need the next element on the stack which is the address for arr[i]
+                // store right side in temp
+                vmWriter.writePop(VMWriter.SEGMENT.TEMP, 0);    // temp[0] = right side, top of stack is addr arr[i]
+                vmWriter.writePop(VMWriter.SEGMENT.POINTER, 1); // THAT points to addr arr[i]
+                vmWriter.writePush(VMWriter.SEGMENT.TEMP, 0);   // place right side back to top of stack
+                vmWriter.writePop(VMWriter.SEGMENT.THAT, offset);   // arr[i] = right side
+            }
 
             tokenizer.advance();    // ;
             return;
@@ -328,34 +496,79 @@ public class CompilationEngine {
         // (
         tokenizer.advance();
 
+        int conditionStart = vmWriter.mark();
         compileExpression();
-        vmWriter.writeArithmetic(VMWriter.ARITHMETIC_COMMAND.NOT);
-        vmWriter.writeIf(l1);
+        List<VMCommand> condition = vmWriter.cut(conditionStart);
         // )
         tokenizer.advance();
 
         // {
         tokenizer.advance();
 
+        int thenStart = vmWriter.mark();
         compileStatements();
+        List<VMCommand> thenStatements = vmWriter.cut(thenStart);
 
         // }
         tokenizer.advance();
-        vmWriter.writeGoto(l2);
-        vmWriter.writeLabel(l1);
         // 0 or 1 else statements
+        List<VMCommand> elseStatements = null;
         if (tokenizer.tokenType() == Tokenizer.TokenType.KEYWORD & tokenizer.keyWord() == Tokenizer.KeyWord.ELSE) {
             tokenizer.advance();
 
             // {
             tokenizer.advance();
 
+            int elseStart = vmWriter.mark();
             compileStatements();
+            elseStatements = vmWriter.cut(elseStart);
 
             // }
             tokenizer.advance();
         }
-        vmWriter.writeLabel(l2);
+
+        Boolean constant = constantCondition(condition);
+        if (constant != null) {
+            // only the branch that runs is kept
+            if (constant) {
+                vmWriter.writeCommands(thenStatements);
+            } else if (elseStatements != null) {
+                vmWriter.writeCommands(elseStatements);
+            }
+        } else if (elseStatements == null) {
+            writeIfFalse(condition, l1);
+            vmWriter.writeCommands(thenStatements);
+            vmWriter.writeLabel(l1);
+        } else if (!isBoolean(condition) || invertCondition(condition) != null && !thenIsHotter(l1, l2)) {
+            writeIfFalse(condition, l1);
+            vmWriter.writeCommands(thenStatements);
+            if (!endsWithReturn(thenStatements)) vmWriter.writeGoto(l2);
+            vmWriter.writeLabel(l1);
+            vmWriter.writeCommands(elseStatements);
+            vmWriter.writeLabel(l2);
+        } else {
+            // jump to the then statements instead of negating the condition, only the same for -1 or 0
+            writeIfTrue(condition, l2);
+            vmWriter.writeCommands(elseStatements);
+            if (!endsWithReturn(elseStatements)) vmWriter.writeGoto(l1);
+            vmWriter.writeLabel(l2);
+            vmWriter.writeCommands(thenStatements);
+            vmWriter.writeLabel(l1);
+        }
+    }
+
+    /**
+     * True when the profile saw the then statements run more often than the else statements.
+     * The branch that falls through pays for the goto past the other one, so the hotter branch goes
+     * last. The if-goto jumps to l1 when the else statements were jumped to, and to l2 for the then
+     * statements, so the counts mean the same whichever layout the profiled build had.
+     */
+    private boolean thenIsHotter(String l1, String l2) {
+        if (profile == null) return false;
+        long[] toElse = profile.branch(functionName, l1);
+        if (toElse != null) return toElse[1] > toElse[0];
+        long[] toThen = profile.branch(functionName, l2);
+        return toThen != null && toThen[0] > toThen[1];
     }
 
     public void compileWhile () throws IOException {
@@ -366,10 +579,9 @@ public class CompilationEngine {
 
         // (
         tokenizer.advance();
-        vmWriter.writeLabel(l1);
+        int conditionStart = vmWriter.mark();
         compileExpression();
-        vmWriter.writeArithmetic(VMWriter.ARITHMETIC_COMMAND.NOT);
-        vmWriter.writeIf(l2);
+        List<VMCommand> condition = vmWriter.cut(conditionStart);
 
         // )
         tokenizer.advance();
@@ -377,11 +589,179 @@ public class CompilationEngine {
         // {
         tokenizer.advance();
 
+        int bodyStart = vmWriter.mark();
+        loops.push(l1);
         compileStatements();
-        vmWriter.writeGoto(l1);
+        loops.pop();
+        List<VMCommand> body = vmWriter.cut(bodyStart);
         // }
         tokenizer.advance();
-        vmWriter.writeLabel(l2);
+
+        Boolean constant = constantCondition(condition);
+        if (constant == null) {
+            // What doesn't change in the loop is computed once before it
+            LoopInvariants.Loop loop = LoopInvariants.hoist(body, condition, vmWriter::newLocal);
+            vmWriter.writeCommands(loop.preheader());
+            if (!isBoolean(loop.condition()) ||
+                    invertCondition(loop.condition()) != null && rarelyIterates(l1, l2)) {
+                // Entered more often than it goes around, so the test at the top saves the jump in.
+                // Also when the condition may be neither -1 nor 0, which only the not tells apart
+                vmWriter.writeLabel(l1);
+                writeIfFalse(loop.condition(), l2);
+                vmWriter.writeCommands(loop.body());
+                vmWriter.writeGoto(l1);
+                vmWriter.writeLabel(l2);
+            } else {
+                // The test is at the bottom so each iteration only takes the conditional jump back,
+                // entering the loop jumps to the test once
+                vmWriter.writeGoto(l2);
+                vmWriter.writeLabel(l1);
+                vmWriter.writeCommands(loop.body());
+                vmWriter.writeLabel(l2);
+                writeIfTrue(loop.condition(), l1);
+            }
+        } else if (constant) {
+            LoopInvariants.Loop loop = LoopInvariants.hoist(body, List.of(), vmWriter::newLocal);
+            vmWriter.writeCommands(loop.preheader());
+            vmWriter.writeLabel(l1);
+            vmWriter.writeCommands(loop.body());
+            vmWriter.writeGoto(l1);
+        }
+        // a loop that never runs is left out
+    }
+
+    /**
+     * True when the profile saw the loop body run fewer times than the loop was entered. With the test
+     * at the bottom the if-goto back to l1 counts iterations when taken and entries when not, with the
+     * test at the top the if-goto out to l2 counts entries when taken and iterations when not.
+     */
+    private boolean rarelyIterates(String l1, String l2) {
+        if (profile == null) return false;
+        long[] back = profile.branch(functionName, l1);
+        if (back != null) return back[0] < back[1];
+        long[] out = profile.branch(functionName, l2);
+        return out != null && out[1] < out[0];
+    }
+
+    // true or false if the condition is a constant, null otherwise. Only -1 is true, as ~ tells
+    private static Boolean constantCondition(List<VMCommand> condition) {
+        VMCommand first = condition.get(0);
+        if (first.type() != VMCommand.Type.PUSH || first.segment() != VMWriter.SEGMENT.CONSTANT) return null;
+        if (condition.size() == 1) return first.index() == -1;
+        if (condition.size() == 2 && condition.get(1).equals(VMCommand.arithmetic(VMWriter.ARITHMETIC_COMMAND.NEG))) {
+            return -first.index() == -1;
+        }
+        if (condition.size() == 2 && condition.get(1).equals(VMCommand.arithmetic(VMWriter.ARITHMETIC_COMMAND.NOT))) {
+            return ~first.index() == -1;
+        }
+        return null;
+    }
+
+    /**
+     * True when the code always leaves -1 or 0: a comparison, true or false, or ~, & and | of those.
+     * Jumping when such a value isn't 0 is the same as running the statements when it is -1.
+     */
+    private static boolean isBoolean(List<VMCommand> code) {
+        int size = code.size();
+        if (size == 0) return false;
+        VMCommand last = code.get(size - 1);
+        if (last.type() == VMCommand.Type.PUSH) {
+            return last.segment() == VMWriter.SEGMENT.CONSTANT && last.index() == 0 && size == 1;
+        }
+        if (last.type() != VMCommand.Type.ARITHMETIC) return false;
+        switch (last.command()) {
+            case EQ, LT, GT -> {
+                return true;
+            }
+            case NOT -> {
+                return isBoolean(code.subList(0, size - 1));
+            }
+            case NEG -> {
+                // true
+                return size == 2 && code.get(0).equals(VMCommand.push(VMWriter.SEGMENT.CONSTANT, 1));
+            }
+            case AND, OR -> {
+                // the right operand is the shortest code before the operator that leaves one value
+                int height = 0;
+                for (int start = size - 2; start >= 0; start--) {
+                    height += StackDepth.effect(code.get(start));
+                    if (height == 1) {
+                        return isBoolean(code.subList(0, start)) && isBoolean(code.subList(start, size - 1));
+                    }
+                }
+                return false;
+            }
+            default -> {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Code that is true exactly when the condition is false, as far as if-goto is concerned,
+     * or null if that needs a not. The last term of the condition is a single constant when
+     * its code ends with push constant, nothing else ends that way.
+     */
+    private static List<VMCommand> invertCondition(List<VMCommand> condition) {
+        int size = condition.size();
+        VMCommand last = condition.get(size - 1);
+        if (last.equals(VMCommand.arithmetic(VMWriter.ARITHMETIC_COMMAND.NOT))) {
+            // ~x
+            return condition.subList(0, size - 1);
+        }
+        if (size < 3 || last.type() != VMCommand.Type.ARITHMETIC) return null;
+        VMCommand operand = condition.get(size - 2);
+        if (operand.type() != VMCommand.Type.PUSH || operand.segment() != VMWriter.SEGMENT.CONSTANT) return null;
+        int c = operand.index();
+        List<VMCommand> inverted = new ArrayList<>(condition.subList(0, size - 2));
+        if (last.command() == VMWriter.ARITHMETIC_COMMAND.EQ & c == 0) {
+            // x = 0 is false when x is not 0
+            return inverted;
+        } else if (last.command() == VMWriter.ARITHMETIC_COMMAND.LT & c > 0) {
+            // ~(x < c) is x > c - 1
+            inverted.add(VMCommand.push(VMWriter.SEGMENT.CONSTANT, c - 1));
+            inverted.add(VMCommand.arithmetic(VMWriter.ARITHMETIC_COMMAND.GT));
+            return inverted;
+        } else if (last.command() == VMWriter.ARITHMETIC_COMMAND.GT & c < 32767) {
+            // ~(x > c) is x < c + 1
+            inverted.add(VMCommand.push(VMWriter.SEGMENT.CONSTANT, c + 1));
+            inverted.add(VMCommand.arithmetic(VMWriter.ARITHMETIC_COMMAND.LT));
+            return inverted;
+        }
+        return null;
+    }
+
+    private void writeIfFalse(List<VMCommand> condition, String label) {
+        List<VMCommand> inverted = invertCondition(condition);
+        if (inverted != null) {
+            vmWriter.writeCommands(inverted);
+        } else {
+            vmWriter.writeCommands(condition);
+            vmWriter.writeArithmetic(VMWriter.ARITHMETIC_COMMAND.NOT);
+        }
+        vmWriter.writeIf(label);
+    }
+
+    private void writeIfTrue(List<VMCommand> condition, String label) {
+        // ~x jumps when x is false, which may not need the not
+        int size = condition.size();
+        if (size > 1 && condition.get(size - 1).equals(VMCommand.arithmetic(VMWriter.ARITHMETIC_COMMAND.NOT))) {
+            List<VMCommand> inverted = invertCondition(condition.subList(0, size - 1));
+            if (inverted != null) {
+                vmWriter.writeCommands(inverted);
+                vmWriter.writeIf(label);
+                return;
+            }
+        }
+        vmWriter.writeCommands(condition);
+        vmWriter.writeIf(label);
+    }
+
+    // Also true for a tail call turned into a jump back to the start
+    private static boolean endsWithReturn(List<VMCommand> statements) {
+        if (statements.isEmpty()) return false;
+        VMCommand.Type last = statements.get(statements.size() - 1).type();
+        return last == VMCommand.Type.RETURN || last == VMCommand.Type.GOTO;
     }
 
     public void compileDo() throws IOException {
@@ -397,18 +777,66 @@ public class CompilationEngine {
         // "return"
         tokenizer.advance();
         boolean isVoid = tokenizer.tokenType() == Tokenizer.TokenType.SYMBOL & tokenizer.symbol() == ';';
-        while (tokenizer.tokenType() != Tokenizer.TokenType.SYMBOL & tokenizer.symbol() != ';') {
-            compileExpression();
-        }
+        if (!isVoid) compileExpression();
 
         // ;
         tokenizer.advance();
         if (isVoid) vmWriter.writePush(VMWriter.SEGMENT.CONSTANT, 0);
+        else if (writeTailCall()) return;
         vmWriter.writeReturn();
     }
 
+    /**
+     * Evaluates the operand that needs the larger stack first (Sethi-Ullman order), so the value of
+     * the other one isn't held under it. The operands are the commands from start to termStart and
+     * after it. Only swapped when neither has side effects, so the order can't be seen.
+     */
+    private void writeDeeperFirst(int start, int termStart) {
+        List<VMCommand> right = vmWriter.cut(termStart);
+        List<VMCommand> left = vmWriter.cut(start);
+        if (StackDepth.max(right) > StackDepth.max(left) && !hasSideEffects(left) && !hasSideEffects(right)) {
+            vmWriter.writeCommands(right);
+            vmWriter.writeCommands(left);
+        } else {
+            vmWriter.writeCommands(left);
+            vmWriter.writeCommands(right);
+        }
+    }
+
+    /**
+     * When the value returned comes from calling this same function or method, the arguments on the
+     * stack become the new arguments and it starts over from the top, instead of a call and a return
+     * for every level. The locals are set back to 0 as a call would.
+     * Constructors allocate a new object each time, so they keep the call.
+     */
+    private boolean writeTailCall() {
+        int nArgs = subroutineTable.varCount(SymbolTable.KIND.ARG);
+        int end = vmWriter.mark();
+        if (end == 0 || this.functionName.endsWith(".new")) return false;
+        VMCommand last = vmWriter.cut(end - 1).get(0);
+        if (!last.equals(VMCommand.call(this.functionName, nArgs))) {
+            vmWriter.writeCommands(List.of(last));
+            return false;
+        }
+
+        for (int arg = nArgs - 1; arg >= 0; arg--) {
+            vmWriter.writePop(VMWriter.SEGMENT.ARGUMENT, arg);
+        }
+        for (int local = 0; local < subroutineTable.varCount(SymbolTable.KIND.VAR); local++) {
+            vmWriter.writePush(VMWriter.SEGMENT.CONSTANT, 0);
+            vmWriter.writePop(VMWriter.SEGMENT.LOCAL, local);
+        }
+        if (entryLabel == null) {
+            entryLabel = "L" + this.label++;
+            vmWriter.writeEntryLabel(entryLabel);
+        }
+        vmWriter.writeGoto(entryLabel);
+        return true;
+    }
+
     public void compileExpression() throws IOException {
         // first term
+        int start = vmWriter.mark();
         compileTerm();
 
         // 0 or more op followed by term
@@ -418,47 +846,39 @@ public class CompilationEngine {
                         tokenizer.symbol() == '<' | tokenizer.symbol() == '>' | tokenizer.symbol() == '=')) {
             char symbol = tokenizer.symbol();
             tokenizer.advance();
+            int termStart = vmWriter.mark();
             compileTerm();
+            if (COMMUTATIVE.indexOf(symbol) != -1) writeDeeperFirst(start, termStart);
             switch (symbol) {
                 case '*' -> {
                     vmWriter.writeCall("Math.multiply", 2);
-                    return;
                 }
                 case '/' -> {
                     vmWriter.writeCall("Math.divide", 2);
-                    return;
                 }
                 case '+' -> {
                     vmWriter.writeArithmetic(VMWriter.ARITHMETIC_COMMAND.ADD);
-                    return;
                 }
                 case '-' -> {
                     vmWriter.writeArithmetic(VMWriter.ARITHMETIC_COMMAND.SUB);
-                    return;
                 }
                 case '=' -> {
                     vmWriter.writeArithmetic(VMWriter.ARITHMETIC_COMMAND.EQ);
-                    return;
                 }
                 case '>' -> {
                     vmWriter.writeArithmetic(VMWriter.ARITHMETIC_COMMAND.GT);
-                    return;
                 }
                 case '<' -> {
                     vmWriter.writeArithmetic(VMWriter.ARITHMETIC_COMMAND.LT);
-                    return;
                 }
                 case '&' -> {
                     vmWriter.writeArithmetic(VMWriter.ARITHMETIC_COMMAND.AND);
-                    return;
                 }
                 case '|' -> {
                     vmWriter.writeArithmetic(VMWriter.ARITHMETIC_COMMAND.OR);
-                    return;
                 }
                 case '~' -> {
                     vmWriter.writeArithmetic(VMWriter.ARITHMETIC_COMMAND.NOT);
-                    return;
                 }
             }
         }
@@ -509,81 +929,76 @@ public class CompilationEngine {
                 // this can be the variable name, method() name or Classname
                 String name = tokenizer.identifier();
 
-                // check for '.'
+                // the symbol after the name, if any, tells which
+                Tokenizer.Lookahead next = tokenizer.peek(1);
+                char follow = next != null && next.type() == Tokenizer.TokenType.SYMBOL ? next.text().charAt(0) : ' ';
                 tokenizer.advance();
-                if (tokenizer.tokenType() == Tokenizer.TokenType.SYMBOL &
-                        tokenizer.symbol() == '.') {
+                if (follow == '.') {
                     // If there is a dot, it is either variable.method() or
-                    // Classname.function()
-                    String first = String.valueOf(name.charAt(0));
-                    if (first.equals(first.toUpperCase())) {
-                        // It has a capital letter, so it's a Classname.function()
-                        tokenizer.advance(); // .
-                        String functionName = tokenizer.identifier();
-                        tokenizer.advance(); // funcName
-                        tokenizer.advance(); // (
-                        compileExpressionList();
+                    // Classname.function(), a declared variable hides a class of the same name
+                    tokenizer.advance(); // .
+                    String subroutineName = tokenizer.identifier();
+                    tokenizer.advance(); // subroutineName
+                    tokenizer.advance(); // (
+                    SymbolTable.KIND kind;
+                    String curClassName;
+                    int index;
+                    if (classTable.kindOf(name) != SymbolTable.KIND.NONE) {
+                        // It's a class variable
+                        kind = classTable.kindOf(name);
+                        curClassName = classTable.typeOf(name);
+                        index = classTable.indexOf(name);
+                    } else {
+                        // subroutine variable, or none
+                        kind = subroutineTable.kindOf(name);
+                        curClassName = kind == SymbolTable.KIND.NONE ? name : subroutineTable.typeOf(name);
+                        index = kind == SymbolTable.KIND.NONE ? 0 : subroutineTable.indexOf(name);
+                    }
+
+                    if (kind == SymbolTable.KIND.NONE | !isMethod(curClassName, subroutineName, true)) {
+                        // Classname.function(), or a function called through a variable of that class
+                        int argumentsStart = vmWriter.mark();
+                        int nArgs = compileExpressionList();
                         tokenizer.advance(); // )
-                        vmWriter.writeCall(name + "." + functionName, this.length);
+                        String callee = curClassName + "." + subroutineName;
+                        if (READ_ONLY_STRINGS.contains(callee)) poolString(argumentsStart);
+                        vmWriter.writeCall(callee, nArgs);
                     } else {
                         // It's variable.method()
                         // need to replace variable with the Classname, and push address for this
-                        String curClassName;
-                        SymbolTable.KIND kind;
-                        int index;
-                        if (classTable.kindOf(name) != SymbolTable.KIND.NONE) {
-                            // It's a class variable
-                            kind = classTable.kindOf(name);
-                            curClassName = classTable.typeOf(name);
-                            index = classTable.indexOf(name);
-                        } else {
-                            // subroutine variable
-                            kind = subroutineTable.kindOf(name);
-                            curClassName = subroutineTable.typeOf(name);
-                            index = subroutineTable.indexOf(name);
-                        }
-                        tokenizer.advance(); // .
-                        String methodName = tokenizer.identifier();
-                        tokenizer.advance(); // methodName
-                        tokenizer.advance(); // (
-
-                        // before pushing args and calling method, which changes pointer,
-                        // save current pointer to restore later
-                        // save current pointer before calling a method
-                        vmWriter.writePush(VMWriter.SEGMENT.POINTER, 0);
+                        // The call saves and restores THIS and THAT, so pointer 0 is unchanged afterwards
 
                         // before getting args, push this, so it becomes arg 0 for the method
                         vmWriter.writePush(VMWriter.KIND_TO_SEGMENT.get(kind), index);
-                        compileExpressionList();
+                        int nArgs = compileExpressionList();
                         tokenizer.advance(); // )
 
-                        vmWriter.writeCall(curClassName + "." + methodName, this.length + 1);
-                        // return val is first on stack, but need to restore pointer
-                        vmWriter.writePop(VMWriter.SEGMENT.TEMP, 0);
-                        vmWriter.writePop(VMWriter.SEGMENT.POINTER, 0);  // restore pointer
-                        vmWriter.writePush(VMWriter.SEGMENT.TEMP, 0);
+                        vmWriter.writeCall(curClassName + "." + subroutineName, nArgs + 1);
                     }
 
                 } else {
                     // There is no dot, so it is either normal variable,
                     // subroutine method() from same class instance, or array index access arr[i]
 
-                    // We know there's no dot, but there could be a ( if it's a method
-                    if (tokenizer.tokenType() == Tokenizer.TokenType.SYMBOL &
-                            tokenizer.symbol() == '(') {
-                        // It's a method call from this same instance
-                        // need to get Classname and push this
+                    // We know there's no dot, but there could be a ( if it's a subroutine of this class
+                    if (follow == '(') {
                         tokenizer.advance(); // (
 
-                        // before getting args, push this, so it becomes arg 0 for the method
-                        vmWriter.writePush(VMWriter.SEGMENT.POINTER, 0);   // this is arg 0
-                        compileExpressionList();
-                        tokenizer.advance(); // )
-
-                        vmWriter.writeCall(className + "." + name, this.length + 1);
+                        if (isMethod(className, name, true)) {
+                            // It's a method call from this same instance
+                            // before getting args, push this, so it becomes arg 0 for the method
+                            vmWriter.writePush(VMWriter.SEGMENT.POINTER, 0);   // this is arg 0
+                            int nArgs = compileExpressionList();
+                            tokenizer.advance(); // )
+                            vmWriter.writeCall(className + "." + name, nArgs + 1);
+                        } else {
+                            // a function or constructor of this class doesn't take this
+                            int nArgs = compileExpressionList();
+                            tokenizer.advance(); // )
+                            vmWriter.writeCall(className + "." + name, nArgs);
+                        }
 
-                    } else if (tokenizer.tokenType() == Tokenizer.TokenType.SYMBOL &
-                            tokenizer.symbol() == '[') {
+                    } else if (follow == '[') {
                         // It's accessing an array index
                         // varName is either in the classTable or subroutineTable
                         // push it onto the stack
@@ -598,19 +1013,19 @@ public class CompilationEngine {
                             kind = subroutineTable.kindOf(name);
                             index = subroutineTable.indexOf(name);
                         }
-                        vmWriter.writePush(VMWriter.KIND_TO_SEGMENT.get(kind), index);
-
                         // process the express between the brackets
                         tokenizer.advance(); // [
+                        int indexStart = vmWriter.mark();
                         compileExpression();
+                        List<VMCommand> arrayIndex = vmWriter.cut(indexStart);
                         tokenizer.advance(); // ]
 
-                        // add, so the top of the stack has the exact address calculated for the index
-                        vmWriter.writeArithmetic(VMWriter.ARITHMETIC_COMMAND.ADD);
+                        // top of the stack has the address calculated for the index
+                        int offset = writeArrayAddress(VMWriter.KIND_TO_SEGMENT.get(kind), index, arrayIndex);
 
                         // get value at the address using THAT/pointer 1
                         vmWriter.writePop(VMWriter.SEGMENT.POINTER, 1);
-                        vmWriter.writePush(VMWriter.SEGMENT.THAT, 0);
+                        vmWriter.writePush(VMWriter.SEGMENT.THAT, offset);
                         // top of the stack now has the value at the array index
                     }
                     else {
@@ -652,17 +1067,126 @@ public class CompilationEngine {
         }
     }
 
-    public void compileExpressionList() throws IOException {
-        this.length = 0;
-        if (tokenizer.tokenType() != Tokenizer.TokenType.SYMBOL | tokenizer.symbol() == '(') {
+    /**
+     * Builds the string literal passed since argumentsStart only the first time, when the profile says
+     * the call runs more than once. The string is kept in a static after the ones the class declares,
+     * and the same text shares it. Only calls that never change or keep the string they are passed
+     * get this, so no one sees it was built before.
+     */
+    private void poolString(int argumentsStart) {
+        if (profile == null || !isHot()) return;
+        List<VMCommand> arguments = vmWriter.cut(argumentsStart);
+        String literal = stringLiteral(arguments);
+        if (literal == null) {
+            vmWriter.writeCommands(arguments);
+            return;
+        }
+        int pooled = pooledStrings.computeIfAbsent(literal,
+                text -> classTable.varCount(SymbolTable.KIND.STATIC) + pooledStrings.size());
+        String built = "S" + poolLabel++;
+        vmWriter.writePush(VMWriter.SEGMENT.STATIC, pooled);
+        vmWriter.writeIf(built);
+        vmWriter.writeCommands(arguments);
+        vmWriter.writePop(VMWriter.SEGMENT.STATIC, pooled);
+        vmWriter.writeLabel(built);
+        vmWriter.writePush(VMWriter.SEGMENT.STATIC, pooled);
+    }
+
+    // The subroutine being compiled runs more than once, or so does a loop around the code
+    private boolean isHot() {
+        if (profile.calls(functionName) > 1) return true;
+        for (String loop : loops) {
+            if (profile.backEdges(functionName, loop) > 0) return true;
+        }
+        return false;
+    }
+
+    // The text of code that only builds a string literal, as compileTerm writes it, null for other code
+    private static String stringLiteral(List<VMCommand> code) {
+        int size = code.size();
+        if (size < 4 || (size - 4) % 4 != 0) return null;
+        int length = (size - 4) / 4;
+        if (!code.get(0).equals(VMCommand.push(VMWriter.SEGMENT.CONSTANT, length)) ||
+                !code.get(1).equals(VMCommand.call("String.new", 1)) ||
+                !code.get(2).equals(VMCommand.pop(VMWriter.SEGMENT.TEMP, 1)) ||
+                !code.get(size - 1).equals(VMCommand.push(VMWriter.SEGMENT.TEMP, 1))) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 3; i < size - 1; i += 4) {
+            VMCommand c = code.get(i + 1);
+            if (!code.get(i).equals(VMCommand.push(VMWriter.SEGMENT.TEMP, 1)) ||
+                    c.type() != VMCommand.Type.PUSH || c.segment() != VMWriter.SEGMENT.CONSTANT ||
+                    !code.get(i + 2).equals(VMCommand.call("String.appendChar", 2)) ||
+                    !code.get(i + 3).equals(VMCommand.pop(VMWriter.SEGMENT.TEMP, 0))) {
+                return null;
+            }
+            sb.append((char) c.index());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Pushes the address of arr[i] given the code for i. A constant index is left out of the address
+     * and returned as the offset to use with THAT, otherwise the offset is 0.
+     */
+    private int writeArrayAddress(VMWriter.SEGMENT segment, int index, List<VMCommand> arrayIndex) {
+        vmWriter.writePush(segment, index);     // base addr arr
+        if (arrayIndex.size() == 1 && arrayIndex.get(0).type() == VMCommand.Type.PUSH &&
+                arrayIndex.get(0).segment() == VMWriter.SEGMENT.CONSTANT) {
+            return arrayIndex.get(0).index();
+        }
+        vmWriter.writeCommands(arrayIndex);
+        vmWriter.writeArithmetic(VMWriter.ARITHMETIC_COMMAND.ADD);
+        return 0;
+    }
+
+    // Calls can change fields, statics and any array. Math.multiply and Math.divide only compute
+    private static boolean hasSideEffects(List<VMCommand> fragment) {
+        for (VMCommand command : fragment) {
+            if (command.type() == VMCommand.Type.CALL &&
+                    !command.name().equals("Math.multiply") && !command.name().equals("Math.divide")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Reads something a call could change, unlike locals, arguments and constants
+    private static boolean readsMemory(List<VMCommand> fragment) {
+        for (VMCommand command : fragment) {
+            if (command.type() == VMCommand.Type.PUSH && (command.segment() == VMWriter.SEGMENT.STATIC |
+                    command.segment() == VMWriter.SEGMENT.THIS | command.segment() == VMWriter.SEGMENT.THAT)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * True if the index says className.subroutineName is a method, otherwise whenUnknown
+     * for classes outside the program or when there is no index.
+     */
+    private boolean isMethod(String className, String subroutineName, boolean whenUnknown) {
+        ClassIndex.Subroutine subroutine = classIndex == null ? null : classIndex.subroutine(className, subroutineName);
+        boolean isMethod = subroutine == null ? whenUnknown : subroutine.kind() == Tokenizer.KeyWord.METHOD;
+        if (cache != null) methods.put(className + "." + subroutineName, isMethod);
+        return isMethod;
+    }
+
+    // Returns the number of expressions
+    public int compileExpressionList() throws IOException {
+        int nExpressions = 0;
+        if (tokenizer.tokenType() != Tokenizer.TokenType.SYMBOL | tokenizer.symbol() != ')') {
             compileExpression();
-            this.length ++;
+            nExpressions++;
         }
         while (tokenizer.tokenType() == Tokenizer.TokenType.SYMBOL & tokenizer.symbol() == ',') {
             // ,
-            this.length ++;
+            nExpressions++;
             tokenizer.advance();
             compileExpression();
         }
+        return nExpressions;
     }
 }
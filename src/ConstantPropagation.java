@@ -0,0 +1,382 @@
+import java.util.*;
+
+/**
+ * Constant and copy propagation over the control flow graph of one function.
+ * For every local and argument the pass works out, at the start of each basic block, whether it holds
+ * a known constant or a copy of another variable on every path there. Locals start at 0, arguments are
+ * unknown. Reads of known variables are replaced, then arithmetic on constants is folded,
+ * multiplications by small powers of two become additions, and branches on constants become jumps or
+ * disappear, along with the code no path reaches any more.
+ */
+public class ConstantPropagation {
+    // what a variable or stack value holds, a constant or the value of variable
+    private record Known(boolean constant, int value) {
+        static Known constant(int value) {
+            return new Known(true, (short) value);
+        }
+
+        static Known variable(int variable) {
+            return new Known(false, variable);
+        }
+    }
+
+    // a value on the stack and where the code computing it starts in the output
+    private record Entry(Known known, int start) {}
+
+    private record Block(int start, int end) {}
+
+    // the variables and successors a block leaves
+    private record Exit(Known[] variables, List<Integer> successors) {}
+
+    private static final int MAX_SHIFT = 3;
+
+    private final List<VMCommand> commands;
+    private final int nLocals;
+    private final int nVariables;
+    private final List<Block> blocks = new ArrayList<>();
+    private final Map<String, Integer> labelBlocks = new HashMap<>();
+
+    private ConstantPropagation(List<VMCommand> commands) {
+        this.commands = commands;
+        this.nLocals = commands.get(0).index();
+        int nArgs = 0;
+        for (VMCommand command : commands) {
+            if (command.segment() == VMWriter.SEGMENT.ARGUMENT) nArgs = Math.max(nArgs, command.index() + 1);
+        }
+        this.nVariables = nLocals + nArgs;
+
+        int start = 1;
+        for (int i = 1; i < commands.size(); i++) {
+            VMCommand command = commands.get(i);
+            if (command.type() == VMCommand.Type.LABEL && i > start) {
+                blocks.add(new Block(start, i));
+                start = i;
+            }
+            if (command.type() == VMCommand.Type.LABEL) labelBlocks.put(command.name(), blocks.size());
+            if (command.type() == VMCommand.Type.GOTO || command.type() == VMCommand.Type.IF ||
+                    command.type() == VMCommand.Type.RETURN) {
+                blocks.add(new Block(start, i + 1));
+                start = i + 1;
+            }
+        }
+        if (start < commands.size()) blocks.add(new Block(start, commands.size()));
+    }
+
+    /**
+     * Returns the function with known values propagated. The function starts with its function command.
+     */
+    public static List<VMCommand> propagate(List<VMCommand> function) {
+        if (function.isEmpty() || function.get(0).type() != VMCommand.Type.FUNCTION) return function;
+        return new ConstantPropagation(function).run();
+    }
+
+    private List<VMCommand> run() {
+        Known[][] entries = new Known[blocks.size()][];
+        if (blocks.isEmpty()) return commands;
+        Known[] start = new Known[nVariables];
+        for (int local = 0; local < nLocals; local++) start[local] = Known.constant(0);
+        entries[0] = start;
+
+        Deque<Integer> work = new ArrayDeque<>(List.of(0));
+        while (!work.isEmpty()) {
+            int block = work.pop();
+            Exit exit = simulate(block, entries[block].clone(), null);
+            for (int successor : exit.successors()) {
+                Known[] merged = entries[successor] == null ? exit.variables().clone() :
+                        meet(entries[successor], exit.variables());
+                if (entries[successor] == null || !Arrays.equals(merged, entries[successor])) {
+                    entries[successor] = merged;
+                    if (!work.contains(successor)) work.push(successor);
+                }
+            }
+        }
+
+        List<VMCommand> result = new ArrayList<>(commands.size());
+        result.add(commands.get(0));
+        for (int block = 0; block < blocks.size(); block++) {
+            // no path gets to a block without entry values, and so nothing jumps to its label
+            if (entries[block] != null) simulate(block, entries[block].clone(), result);
+        }
+        return removeJumpsToNext(result);
+    }
+
+    private static Known[] meet(Known[] a, Known[] b) {
+        Known[] merged = new Known[a.length];
+        for (int i = 0; i < a.length; i++) {
+            merged[i] = Objects.equals(a[i], b[i]) ? a[i] : null;
+        }
+        return merged;
+    }
+
+    private int variable(VMCommand command) {
+        if (command.segment() == VMWriter.SEGMENT.LOCAL) return command.index();
+        if (command.segment() == VMWriter.SEGMENT.ARGUMENT) return nLocals + command.index();
+        return -1;
+    }
+
+    private VMCommand push(int variable) {
+        return variable < nLocals ? VMCommand.push(VMWriter.SEGMENT.LOCAL, variable) :
+                VMCommand.push(VMWriter.SEGMENT.ARGUMENT, variable - nLocals);
+    }
+
+    private static void pushConstant(List<VMCommand> out, int value) {
+        if (value >= 0) {
+            out.add(VMCommand.push(VMWriter.SEGMENT.CONSTANT, value));
+        } else {
+            // ~value fits in a constant for every negative value, -32768 too
+            out.add(VMCommand.push(VMWriter.SEGMENT.CONSTANT, ~value));
+            out.add(VMCommand.arithmetic(VMWriter.ARITHMETIC_COMMAND.NOT));
+        }
+    }
+
+    /**
+     * Runs a block from the variables at its start. When out isn't null, the rewritten block is
+     * appended to it.
+     */
+    private Exit simulate(int blockIndex, Known[] variables, List<VMCommand> out) {
+        Block block = blocks.get(blockIndex);
+        List<VMCommand> code = out != null ? out : new ArrayList<>();
+        Deque<Entry> stack = new ArrayDeque<>();
+        List<Integer> successors = new ArrayList<>();
+        boolean fallsThrough = true;
+        // start of the address popped into pointer 1 by the command before, for array reads
+        int thatBase = -1;
+        for (int i = block.start(); i < block.end(); i++) {
+            VMCommand command = commands.get(i);
+            int variable = variable(command);
+            int base = thatBase;
+            thatBase = -1;
+            switch (command.type()) {
+                case PUSH -> {
+                    // an array read starts with its address, so leaving out an operand before it keeps that
+                    int start = command.segment() == VMWriter.SEGMENT.THAT && base >= 0 ? base : code.size();
+                    if (variable >= 0) {
+                        Known known = variables[variable] != null ? variables[variable] : Known.variable(variable);
+                        if (known.constant()) pushConstant(code, known.value());
+                        else code.add(push(known.value()));
+                        stack.push(new Entry(known, start));
+                    } else {
+                        code.add(command);
+                        stack.push(new Entry(command.segment() == VMWriter.SEGMENT.CONSTANT ?
+                                Known.constant(command.index()) : null, start));
+                    }
+                }
+                case POP -> {
+                    Entry value = pop(stack, code);
+                    if (variable >= 0 && isConstant(value) && value.known().equals(variables[variable])) {
+                        // it already holds that constant
+                        truncate(code, value.start());
+                    } else {
+                        code.add(command);
+                        if (variable >= 0) assign(variables, stack, variable, value.known());
+                        if (command.segment() == VMWriter.SEGMENT.POINTER && command.index() == 1) {
+                            thatBase = value.start();
+                        }
+                    }
+                }
+                case ARITHMETIC -> arithmetic(command, stack, code);
+                case CALL -> call(command, stack, code);
+                case IF -> {
+                    Entry condition = pop(stack, code);
+                    Integer target = labelBlocks.get(command.name());
+                    if (condition.known() != null && condition.known().constant()) {
+                        truncate(code, condition.start());
+                        if (condition.known().value() != 0) {
+                            code.add(VMCommand.goTo(command.name()));
+                            if (target != null) successors.add(target);
+                            fallsThrough = false;
+                        }
+                    } else {
+                        code.add(command);
+                        if (target != null) successors.add(target);
+                    }
+                }
+                case GOTO -> {
+                    code.add(command);
+                    Integer target = labelBlocks.get(command.name());
+                    if (target != null) successors.add(target);
+                    fallsThrough = false;
+                }
+                case RETURN -> {
+                    pop(stack, code);
+                    code.add(command);
+                    fallsThrough = false;
+                }
+                default -> code.add(command);
+            }
+        }
+        if (fallsThrough && blockIndex + 1 < blocks.size()) successors.add(blockIndex + 1);
+        return new Exit(variables, successors);
+    }
+
+    private static Entry pop(Deque<Entry> stack, List<VMCommand> code) {
+        // a value from before the block isn't known
+        return stack.isEmpty() ? new Entry(null, code.size()) : stack.pop();
+    }
+
+    private static void truncate(List<VMCommand> code, int size) {
+        code.subList(size, code.size()).clear();
+    }
+
+    private static void assign(Known[] variables, Deque<Entry> stack, int variable, Known value) {
+        if (value != null && !value.constant() && value.value() == variable) return;
+        // copies of the old value, in variables and on the stack, aren't copies any more
+        Known old = variables[variable];
+        Known replacement = old != null && old.constant() ? old : null;
+        for (int other = 0; other < variables.length; other++) {
+            Known known = variables[other];
+            if (known != null && !known.constant() && known.value() == variable) variables[other] = replacement;
+        }
+        List<Entry> entries = new ArrayList<>(stack);
+        stack.clear();
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Entry entry = entries.get(i);
+            Known known = entry.known();
+            if (known != null && !known.constant() && known.value() == variable) {
+                entry = new Entry(replacement, entry.start());
+            }
+            stack.push(entry);
+        }
+        variables[variable] = value;
+    }
+
+    private static boolean isConstant(Entry entry, int value) {
+        return entry.known() != null && entry.known().constant() && entry.known().value() == value;
+    }
+
+    private static boolean isConstant(Entry entry) {
+        return entry.known() != null && entry.known().constant();
+    }
+
+    private static void arithmetic(VMCommand command, Deque<Entry> stack, List<VMCommand> code) {
+        VMWriter.ARITHMETIC_COMMAND operation = command.command();
+        if (operation == VMWriter.ARITHMETIC_COMMAND.NEG || operation == VMWriter.ARITHMETIC_COMMAND.NOT) {
+            Entry value = pop(stack, code);
+            if (isConstant(value)) {
+                int result = operation == VMWriter.ARITHMETIC_COMMAND.NEG ? -value.known().value() :
+                        ~value.known().value();
+                truncate(code, value.start());
+                pushConstant(code, (short) result);
+                stack.push(new Entry(Known.constant(result), value.start()));
+            } else {
+                code.add(command);
+                stack.push(new Entry(null, value.start()));
+            }
+            return;
+        }
+
+        Entry b = pop(stack, code);
+        Entry a = pop(stack, code);
+        if (isConstant(a) && isConstant(b)) {
+            int x = a.known().value(), y = b.known().value();
+            int result = switch (operation) {
+                case ADD -> x + y;
+                case SUB -> x - y;
+                case EQ -> x == y ? -1 : 0;
+                case GT -> x > y ? -1 : 0;
+                case LT -> x < y ? -1 : 0;
+                case AND -> x & y;
+                default -> x | y;
+            };
+            truncate(code, a.start());
+            pushConstant(code, (short) result);
+            stack.push(new Entry(Known.constant(result), a.start()));
+            return;
+        }
+
+        // x + 0, x - 0, x | 0 and x & -1 are x
+        boolean rightIdentity = switch (operation) {
+            case ADD, SUB, OR -> isConstant(b, 0);
+            case AND -> isConstant(b, -1);
+            default -> false;
+        };
+        boolean leftIdentity = switch (operation) {
+            case ADD, OR -> isConstant(a, 0);
+            case AND -> isConstant(a, -1);
+            default -> false;
+        };
+        if (rightIdentity) {
+            truncate(code, b.start());
+            stack.push(a);
+        } else if (leftIdentity) {
+            code.subList(a.start(), b.start()).clear();
+            stack.push(new Entry(b.known(), a.start()));
+        } else {
+            code.add(command);
+            stack.push(new Entry(null, a.start()));
+        }
+    }
+
+    private static void call(VMCommand command, Deque<Entry> stack, List<VMCommand> code) {
+        List<Entry> args = new ArrayList<>();
+        for (int arg = 0; arg < command.index(); arg++) args.add(0, pop(stack, code));
+        int start = args.isEmpty() ? code.size() : args.get(0).start();
+        boolean multiply = command.name().equals("Math.multiply") && args.size() == 2;
+        boolean divide = command.name().equals("Math.divide") && args.size() == 2;
+        if (multiply || divide) {
+            Entry a = args.get(0), b = args.get(1);
+            if (isConstant(a) && isConstant(b) && (multiply || b.known().value() != 0)) {
+                int x = a.known().value(), y = b.known().value();
+                int result = (short) (multiply ? x * y : x / y);
+                truncate(code, start);
+                pushConstant(code, result);
+                stack.push(new Entry(Known.constant(result), start));
+                return;
+            }
+            if (isConstant(b, 1)) {
+                truncate(code, b.start());
+                stack.push(a);
+                return;
+            }
+            if (multiply && isConstant(a, 1)) {
+                code.subList(a.start(), b.start()).clear();
+                stack.push(new Entry(b.known(), start));
+                return;
+            }
+            if (multiply && (shift(b) > 0 || shift(a) > 0)) {
+                // x * 2^k doubles x k times, temp 0 holds it since nothing is called in between
+                int shift = shift(b) > 0 ? shift(b) : shift(a);
+                if (shift(b) > 0) truncate(code, b.start());
+                else code.subList(a.start(), b.start()).clear();
+                for (int i = 0; i < shift; i++) {
+                    code.add(VMCommand.pop(VMWriter.SEGMENT.TEMP, 0));
+                    code.add(VMCommand.push(VMWriter.SEGMENT.TEMP, 0));
+                    code.add(VMCommand.push(VMWriter.SEGMENT.TEMP, 0));
+                    code.add(VMCommand.arithmetic(VMWriter.ARITHMETIC_COMMAND.ADD));
+                }
+                stack.push(new Entry(null, start));
+                return;
+            }
+        }
+        code.add(command);
+        stack.push(new Entry(null, start));
+    }
+
+    // k when the value is a known 2^k for a small k, otherwise 0
+    private static int shift(Entry entry) {
+        if (!isConstant(entry)) return 0;
+        int value = entry.known().value();
+        for (int k = 1; k <= MAX_SHIFT; k++) {
+            if (value == 1 << k) return k;
+        }
+        return 0;
+    }
+
+    // A jump over nothing but labels, to one of them, is left out
+    private static List<VMCommand> removeJumpsToNext(List<VMCommand> commands) {
+        List<VMCommand> result = new ArrayList<>(commands.size());
+        for (int i = 0; i < commands.size(); i++) {
+            VMCommand command = commands.get(i);
+            if (command.type() == VMCommand.Type.GOTO) {
+                int next = i + 1;
+                while (next < commands.size() && commands.get(next).type() == VMCommand.Type.LABEL &&
+                        !commands.get(next).name().equals(command.name())) {
+                    next++;
+                }
+                if (next < commands.size() && commands.get(next).equals(VMCommand.label(command.name()))) continue;
+            }
+            result.add(command);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,127 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Remembers, for each source file of a directory compile, the hash it was compiled from, the
+ * signature of its class and the signature entries of every subroutine it called.
+ * A file whose source is unchanged only needs compiling again when one of those entries changed.
+ */
+public class DependencyGraph {
+    private record Entry(String sourceHash, ClassSignature signature, Map<String, String> references) {}
+
+    // entry recorded for a call to a class that isn't part of the program, like the OS
+    private static final String EXTERNAL = "-";
+
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    public static DependencyGraph load(Path file) throws IOException {
+        DependencyGraph graph = new DependencyGraph();
+        if (!Files.exists(file)) return graph;
+
+        String filename = null, sourceHash = null, className = null;
+        int fieldCount = 0;
+        Map<String, String> subroutines = null, references = null;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] parts = line.split("\t");
+            switch (parts[0]) {
+                case "file" -> {
+                    filename = parts[1];
+                    sourceHash = parts[2];
+                    subroutines = new LinkedHashMap<>();
+                    references = new TreeMap<>();
+                }
+                case "class" -> {
+                    className = parts[1];
+                    fieldCount = Integer.parseInt(parts[2]);
+                }
+                case "sub" -> subroutines.put(parts[1], parts[2]);
+                case "ref" -> references.put(parts[1], parts[2]);
+                case "end" -> graph.entries.put(filename,
+                        new Entry(sourceHash, new ClassSignature(className, fieldCount, subroutines), references));
+            }
+        }
+        return graph;
+    }
+
+    public void save(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> fileEntry : entries.entrySet()) {
+                Entry entry = fileEntry.getValue();
+                ClassSignature signature = entry.signature();
+                writer.write("file\t" + fileEntry.getKey() + "\t" + entry.sourceHash() + "\n");
+                writer.write("class\t" + signature.className() + "\t" + signature.fieldCount() + "\n");
+                for (Map.Entry<String, String> subroutine : signature.subroutines().entrySet()) {
+                    writer.write("sub\t" + subroutine.getKey() + "\t" + subroutine.getValue() + "\n");
+                }
+                for (Map.Entry<String, String> reference : entry.references().entrySet()) {
+                    writer.write("ref\t" + reference.getKey() + "\t" + reference.getValue() + "\n");
+                }
+                writer.write("end\n");
+            }
+        }
+    }
+
+    public boolean isUpToDate(String filename, String sourceHash) {
+        Entry entry = entries.get(filename);
+        return entry != null && entry.sourceHash().equals(sourceHash);
+    }
+
+    public ClassSignature signature(String filename) {
+        return entries.get(filename).signature();
+    }
+
+    /**
+     * Records what filename was compiled from and what its commands call, as of the signatures
+     * (by class name) of the classes compiled with it.
+     */
+    public void record(String filename, String sourceHash, ClassSignature signature, List<VMCommand> commands,
+                       Map<String, ClassSignature> signatures) {
+        Map<String, String> references = new TreeMap<>();
+        for (VMCommand command : commands) {
+            if (command.type() == VMCommand.Type.CALL) {
+                references.put(command.name(), entryOf(command.name(), signatures));
+            }
+        }
+        entries.put(filename, new Entry(sourceHash, signature, references));
+    }
+
+    // True if a subroutine filename calls changed kind, argument count or inlinable code since it was compiled
+    public boolean referencesChanged(String filename, Map<String, ClassSignature> signatures) {
+        for (Map.Entry<String, String> reference : entries.get(filename).references().entrySet()) {
+            if (!reference.getValue().equals(entryOf(reference.getKey(), signatures))) return true;
+        }
+        return false;
+    }
+
+    // Forgets files that are no longer part of the program
+    public void retain(Collection<String> filenames) {
+        entries.keySet().retainAll(filenames);
+    }
+
+    private static String entryOf(String function, Map<String, ClassSignature> signatures) {
+        int dot = function.indexOf('.');
+        ClassSignature signature = signatures.get(function.substring(0, dot));
+        if (signature == null) return EXTERNAL;
+        String entry = signature.entry(function.substring(dot + 1));
+        return entry == null ? EXTERNAL : entry;
+    }
+
+    public static String hash(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            return HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String hash(String text) {
+        return hash(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,168 @@
+import java.util.*;
+
+/**
+ * Runs the VM code of a function, or part of one, on a symbolic stack to find the commands computing
+ * each value, what each value reads and what each command writes.
+ * A value is pure when it only comes from arithmetic, Math.multiply and Math.divide, and reads of
+ * variables, fields and array elements. Fields and array elements may alias, so any store to memory or
+ * call that may have side effects counts as writing all of memory, and all statics too for a call.
+ */
+public class ExpressionAnalysis {
+    private static final String MEMORY = "memory";
+    private static final String THIS = "pointer 0";
+    private static final String ANY_STATIC = "static";
+
+    private record Value(int start, Set<String> reads, boolean pure, int calls) {}
+
+    /**
+     * A composite value computed by the commands from start to before end, in basic block block.
+     * The start is -1 when the value isn't pure.
+     */
+    public record Occurrence(int block, int start, int end, Set<String> reads, int calls) {
+        public boolean pure() {
+            return start >= 0;
+        }
+
+        public int size() {
+            return end - start;
+        }
+    }
+
+    private record Kill(int position, String resource) {}
+
+    private final List<Occurrence> occurrences = new ArrayList<>();
+    private final List<Kill> kills = new ArrayList<>();
+
+    public ExpressionAnalysis(List<VMCommand> commands) {
+        Deque<Value> stack = new ArrayDeque<>();
+        int block = 0;
+        // address popped into pointer 1 by the command before, for array reads
+        Value thatBase = null;
+        for (int i = 0; i < commands.size(); i++) {
+            VMCommand command = commands.get(i);
+            Value base = thatBase;
+            thatBase = null;
+            switch (command.type()) {
+                case PUSH -> {
+                    if (command.segment() == VMWriter.SEGMENT.THAT && base != null) {
+                        Value value = new Value(base.start(), union(base.reads(), Set.of(MEMORY)), base.pure(),
+                                base.calls());
+                        stack.push(value);
+                        occurrences.add(occurrence(block, value, i));
+                    } else {
+                        stack.push(leaf(command, i));
+                    }
+                }
+                case POP -> {
+                    Value value = pop(stack, i);
+                    if (command.segment() == VMWriter.SEGMENT.POINTER && command.index() == 1) {
+                        thatBase = value;
+                    } else {
+                        String resource = writtenBy(command);
+                        if (resource != null) kills.add(new Kill(i, resource));
+                    }
+                }
+                case ARITHMETIC -> {
+                    boolean unary = command.command() == VMWriter.ARITHMETIC_COMMAND.NEG ||
+                            command.command() == VMWriter.ARITHMETIC_COMMAND.NOT;
+                    Value value = unary ? pop(stack, i) : combine(pop(stack, i), pop(stack, i), 0);
+                    stack.push(value);
+                    occurrences.add(occurrence(block, value, i));
+                }
+                case CALL -> {
+                    Value value = new Value(i, Set.of(), true, 0);
+                    for (int arg = 0; arg < command.index(); arg++) value = combine(value, pop(stack, i), 0);
+                    if (isPureCall(command.name())) {
+                        value = combine(value, new Value(i, Set.of(), true, 0), 1);
+                        stack.push(value);
+                        occurrences.add(occurrence(block, value, i));
+                    } else {
+                        // the callee may write any memory and statics, THIS comes back as it was
+                        kills.add(new Kill(i, MEMORY));
+                        kills.add(new Kill(i, ANY_STATIC));
+                        stack.push(new Value(value.start(), Set.of(), false, 0));
+                    }
+                }
+                default -> {
+                    // labels, jumps and returns end the block
+                    stack.clear();
+                    block++;
+                }
+            }
+        }
+    }
+
+    // Calls that only compute a value, the OS versions change nothing else
+    public static boolean isPureCall(String function) {
+        return function.equals("Math.multiply") || function.equals("Math.divide");
+    }
+
+    private static Value leaf(VMCommand command, int position) {
+        String resource = VMWriter.SEGMENT_MAP.get(command.segment()) + " " + command.index();
+        return switch (command.segment()) {
+            case CONSTANT -> new Value(position, Set.of(), true, 0);
+            case LOCAL, ARGUMENT, STATIC -> new Value(position, Set.of(resource), true, 0);
+            case THIS -> new Value(position, Set.of(MEMORY, THIS), true, 0);
+            case POINTER -> new Value(position, Set.of(resource), command.index() == 0, 0);
+            // THAT set somewhere else, or a temp any call may change
+            default -> new Value(position, Set.of(), false, 0);
+        };
+    }
+
+    private static String writtenBy(VMCommand command) {
+        return switch (command.segment()) {
+            case LOCAL, ARGUMENT, STATIC -> VMWriter.SEGMENT_MAP.get(command.segment()) + " " + command.index();
+            case THIS, THAT -> MEMORY;
+            case POINTER -> THIS;
+            default -> null;
+        };
+    }
+
+    private static Value pop(Deque<Value> stack, int position) {
+        // a value from before the block isn't known
+        return stack.isEmpty() ? new Value(position, Set.of(), false, 0) : stack.pop();
+    }
+
+    // second is the value below first on the stack, so it starts first
+    private static Value combine(Value first, Value second, int calls) {
+        return new Value(Math.min(first.start(), second.start()), union(first.reads(), second.reads()),
+                first.pure() && second.pure(), first.calls() + second.calls() + calls);
+    }
+
+    private static Set<String> union(Set<String> a, Set<String> b) {
+        if (a.isEmpty()) return b;
+        if (b.isEmpty()) return a;
+        Set<String> union = new HashSet<>(a);
+        union.addAll(b);
+        return union;
+    }
+
+    private static Occurrence occurrence(int block, Value value, int position) {
+        return new Occurrence(block, value.pure() ? value.start() : -1, position + 1, value.reads(), value.calls());
+    }
+
+    public List<Occurrence> occurrences() {
+        return occurrences;
+    }
+
+    // The commands computing the value, the same text computes the same value while nothing it reads changes
+    public static String text(List<VMCommand> commands, Occurrence occurrence) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = occurrence.start(); i < occurrence.end(); i++) sb.append(commands.get(i)).append('\n');
+        return sb.toString();
+    }
+
+    // True if a command from from to before to writes something reads has
+    public boolean written(Set<String> reads, int from, int to) {
+        for (Kill kill : kills) {
+            if (kill.position() < from || kill.position() >= to) continue;
+            if (reads.contains(kill.resource())) return true;
+            if (kill.resource().equals(ANY_STATIC)) {
+                for (String read : reads) {
+                    if (read.startsWith(ANY_STATIC + " ")) return true;
+                }
+            }
+        }
+        return false;
+    }
+}
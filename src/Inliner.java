@@ -0,0 +1,241 @@
+import java.util.*;
+
+/**
+ * Whole program inliner for directory compiles.
+ * Small leaf functions and methods whose bodies only touch arguments, fields and constants
+ * are copied into their call sites, as long as the program stays within the size budget.
+ * With a profile the budget goes to the call sites that ran the most, bodies up to twice as large are
+ * inlined there, and calls that never ran are left alone.
+ */
+public class Inliner {
+    // inlined bodies keep their arguments in temp 2 to temp 7, the compiler only uses temp 0 and temp 1
+    private static final int FIRST_TEMP = 2;
+    private static final int MAX_TEMPS = 6;
+
+    private record Candidate(boolean isMethod, int nArgs, List<VMCommand> body) {}
+
+    private record Site(String className, int index, long count, int growth) {}
+
+    private final int maxBodySize;
+    private final int minBudget;
+    private final Map<String, Candidate> candidates = new HashMap<>();
+    private Profile profile;
+    private int inlinedCalls;
+
+    public Inliner() {
+        this(8, 100);
+    }
+
+    /**
+     * maxBodySize is the largest body inlined, not counting the method prologue and the return,
+     * twice that at call sites a profile saw run more than once.
+     * The program may grow by a tenth of its size or minBudget commands, whichever is larger.
+     */
+    public Inliner(int maxBodySize, int minBudget) {
+        this.maxBodySize = maxBodySize;
+        this.minBudget = minBudget;
+    }
+
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    public int inlinedCalls() {
+        return inlinedCalls;
+    }
+
+    /**
+     * Inlines calls in every class of the program, the commands of each class are replaced in place.
+     */
+    public void inline(Map<String, List<VMCommand>> program) {
+        int programSize = 0;
+        Map<String, Integer> arities = new HashMap<>();
+        for (List<VMCommand> commands : program.values()) {
+            programSize += commands.size();
+            for (VMCommand command : commands) {
+                if (command.type() == VMCommand.Type.CALL) arities.put(command.name(), command.index());
+            }
+        }
+        for (List<VMCommand> commands : program.values()) {
+            findCandidates(commands, arities);
+        }
+
+        // the sites to inline, in program order or the hottest first
+        List<Site> sites = new ArrayList<>();
+        for (Map.Entry<String, List<VMCommand>> entry : program.entrySet()) {
+            findSites(entry.getKey(), entry.getValue(), sites);
+        }
+        if (profile != null) sites.sort(Comparator.comparingLong(Site::count).reversed());
+        int budget = Math.max(minBudget, programSize / 10);
+        Map<String, Set<Integer>> chosen = new HashMap<>();
+        for (Site site : sites) {
+            if (site.growth() > budget || site.count() == 0) continue;
+            budget -= Math.max(site.growth(), 0);
+            chosen.computeIfAbsent(site.className(), k -> new HashSet<>()).add(site.index());
+        }
+
+        for (Map.Entry<String, List<VMCommand>> entry : program.entrySet()) {
+            List<VMCommand> inlined = new ArrayList<>();
+            inlineCalls(entry.getValue(), inlined, chosen.getOrDefault(entry.getKey(), Set.of()));
+            removeDiscardedConstants(inlined);
+            entry.setValue(inlined);
+        }
+    }
+
+    /**
+     * The calls to candidates in one class. A call the profile doesn't have counts as often as its
+     * caller ran, it may have been inlined in the profiled build.
+     */
+    private void findSites(String className, List<VMCommand> commands, List<Site> sites) {
+        String function = null;
+        for (int i = 0; i < commands.size(); i++) {
+            VMCommand command = commands.get(i);
+            if (command.type() == VMCommand.Type.FUNCTION) function = command.name();
+            Candidate candidate = command.type() == VMCommand.Type.CALL ? candidates.get(command.name()) : null;
+            if (candidate == null || candidate.nArgs() != command.index()) continue;
+            long count = 1;
+            if (profile != null) {
+                count = profile.calls(function, command.name());
+                if (count < 0) count = profile.calls(function);
+            }
+            // larger bodies only where they run more than once
+            if (candidate.body().size() > maxBodySize && count <= 1) continue;
+            sites.add(new Site(className, i, count, expand(candidate).size() - 1));
+        }
+    }
+
+    private void findCandidates(List<VMCommand> commands, Map<String, Integer> arities) {
+        for (int start = 0; start < commands.size(); start++) {
+            VMCommand function = commands.get(start);
+            if (function.type() != VMCommand.Type.FUNCTION) continue;
+            int end = start + 1;
+            while (end < commands.size() && commands.get(end).type() != VMCommand.Type.FUNCTION) end++;
+            Integer nArgs = arities.get(function.name());
+            if (function.index() == 0 && nArgs != null) {
+                Candidate candidate = candidate(commands.subList(start + 1, end), nArgs);
+                if (candidate != null) candidates.put(function.name(), candidate);
+            }
+            start = end - 1;
+        }
+    }
+
+    private Candidate candidate(List<VMCommand> body, int nArgs) {
+        boolean isMethod = body.size() >= 2 &&
+                body.get(0).equals(VMCommand.push(VMWriter.SEGMENT.ARGUMENT, 0)) &&
+                body.get(1).equals(VMCommand.pop(VMWriter.SEGMENT.POINTER, 0));
+        if (isMethod) body = body.subList(2, body.size());
+        if (body.isEmpty() || body.get(body.size() - 1).type() != VMCommand.Type.RETURN) return null;
+        body = body.subList(0, body.size() - 1);
+        if (body.size() > 2 * maxBodySize) return null;
+        if (nArgs - (isMethod ? 1 : 0) > MAX_TEMPS) return null;
+
+        for (VMCommand command : body) {
+            switch (command.type()) {
+                case PUSH, POP -> {
+                    switch (command.segment()) {
+                        case CONSTANT -> {}
+                        case ARGUMENT -> {
+                            if (command.index() >= nArgs) return null;
+                            if (isMethod && command.index() == 0 && command.type() == VMCommand.Type.POP) return null;
+                        }
+                        case POINTER -> {
+                            // this
+                            if (!isMethod || command.index() != 0 || command.type() == VMCommand.Type.POP) return null;
+                        }
+                        case THIS -> {
+                            if (!isMethod) return null;
+                        }
+                        // statics belong to the callee's class, locals don't exist
+                        default -> {
+                            return null;
+                        }
+                    }
+                }
+                case ARITHMETIC -> {}
+                // leaves only, so nothing inlined can be recursive
+                default -> {
+                    return null;
+                }
+            }
+        }
+        return new Candidate(isMethod, nArgs, new ArrayList<>(body));
+    }
+
+    private void inlineCalls(List<VMCommand> commands, List<VMCommand> inlined, Set<Integer> chosen) {
+        for (int i = 0; i < commands.size(); i++) {
+            if (chosen.contains(i)) {
+                inlined.addAll(expand(candidates.get(commands.get(i).name())));
+                inlinedCalls++;
+            } else {
+                inlined.add(commands.get(i));
+            }
+        }
+    }
+
+    /**
+     * The body as it runs at the call site. The arguments are on the stack, they are popped into temps
+     * unless the body starts by pushing them in order and doesn't use them again.
+     * In a method this goes into THAT, and fields are read and written through it.
+     */
+    private static List<VMCommand> expand(Candidate candidate) {
+        List<VMCommand> body = candidate.body();
+        int nArgs = candidate.nArgs();
+        int first = candidate.isMethod() ? 1 : 0;
+        List<VMCommand> expansion = new ArrayList<>();
+
+        if (!candidate.isMethod() && argumentsInPlace(body, nArgs)) {
+            expansion.addAll(body.subList(nArgs, body.size()));
+            return expansion;
+        }
+
+        for (int arg = nArgs - 1; arg >= first; arg--) {
+            expansion.add(VMCommand.pop(VMWriter.SEGMENT.TEMP, FIRST_TEMP + arg - first));
+        }
+        if (candidate.isMethod()) expansion.add(VMCommand.pop(VMWriter.SEGMENT.POINTER, 1));
+        for (VMCommand command : body) {
+            if (command.segment() == VMWriter.SEGMENT.ARGUMENT) {
+                if (candidate.isMethod() && command.index() == 0) {
+                    command = new VMCommand(command.type(), VMWriter.SEGMENT.POINTER, null, null, 1);
+                } else {
+                    command = new VMCommand(command.type(), VMWriter.SEGMENT.TEMP, null, null,
+                            FIRST_TEMP + command.index() - first);
+                }
+            } else if (command.segment() == VMWriter.SEGMENT.POINTER) {
+                // this
+                command = VMCommand.push(VMWriter.SEGMENT.POINTER, 1);
+            } else if (command.segment() == VMWriter.SEGMENT.THIS) {
+                command = new VMCommand(command.type(), VMWriter.SEGMENT.THAT, null, null, command.index());
+            }
+            expansion.add(command);
+        }
+        return expansion;
+    }
+
+    private static boolean argumentsInPlace(List<VMCommand> body, int nArgs) {
+        if (body.size() < nArgs) return false;
+        for (int i = 0; i < body.size(); i++) {
+            if (i < nArgs ? !body.get(i).equals(VMCommand.push(VMWriter.SEGMENT.ARGUMENT, i)) :
+                    body.get(i).segment() == VMWriter.SEGMENT.ARGUMENT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Drops a void result that is thrown away right away, which inlining leaves behind for do statements
+    private static void removeDiscardedConstants(List<VMCommand> commands) {
+        List<VMCommand> result = new ArrayList<>(commands.size());
+        for (VMCommand command : commands) {
+            int last = result.size() - 1;
+            if (command.equals(VMCommand.pop(VMWriter.SEGMENT.TEMP, 0)) && last >= 0 &&
+                    result.get(last).type() == VMCommand.Type.PUSH &&
+                    result.get(last).segment() == VMWriter.SEGMENT.CONSTANT) {
+                result.remove(last);
+            } else {
+                result.add(command);
+            }
+        }
+        commands.clear();
+        commands.addAll(result);
+    }
+}
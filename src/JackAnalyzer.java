@@ -1,27 +1,376 @@
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 public class JackAnalyzer {
-    private static void handleFile(String filename) throws IOException {
+    /**
+     * How to compile, from the command line. stackDepths prints the highest the stack gets in each
+     * function compiled, gzip writes each class to a compressed .vm.gz file.
+     */
+    private record Options(boolean inline, boolean incremental, Path bundle, boolean bundleIndex, Profile profile,
+                           boolean stackDepths, boolean gzip) {}
+
+    private static void handleFile(String filename, Options options) throws IOException {
         Tokenizer tokenizer = new Tokenizer(filename);
         tokenizer.advance();
-        FileWriter outputFile = new FileWriter(filename.substring(0, filename.indexOf(".jack")) + ".vm", false);
+        Writer outputFile = Pipeline.newWriter(Paths.get(outputName(filename, options)));
 
         CompilationEngine compilationEngine = new CompilationEngine(tokenizer, outputFile);
+        // scanned on this thread, starting the common pool would cost more than the scan
+        compilationEngine.setClassIndex(ClassIndex.of(List.of(ClassIndex.scan(filename))));
+        compilationEngine.setProfile(options.profile());
         compilationEngine.compileClass();
+        if (options.stackDepths()) {
+            printStackDepths(parseCommands(Pipeline.readText(Paths.get(outputName(filename, options)))));
+        }
+    }
+
+    private static void printStackDepths(List<VMCommand> commands) {
+        for (Map.Entry<String, Integer> entry : StackDepth.ofFunctions(commands).entrySet()) {
+            System.out.println(entry.getKey() + "\t" + entry.getValue());
+        }
+    }
+
+    private static String outputName(String filename, Options options) {
+        return filename.substring(0, filename.indexOf(".jack")) + (options.gzip() ? ".vm.gz" : ".vm");
+    }
+
+    // A Jack source, maybe gzip compressed
+    static boolean isSource(String filename) {
+        return filename.endsWith(".jack") || filename.endsWith(".jack.gz");
+    }
+
+    private record SourceFile(String filename, String text, String hash, ClassIndex.ClassInfo info) {}
+
+    private record CompiledClass(String filename, ClassSignature signature, List<VMCommand> commands) {}
+
+    /**
+     * The tokenizer, engine and output of one worker thread. They are reset for each file instead of
+     * being created again, so their tables and buffers keep their capacity from one file to the next.
+     */
+    private static final class Compiler {
+        private final Tokenizer tokenizer;
+        private final StringWriter output = new StringWriter();
+        private final CompilationEngine compilationEngine;
+
+        private Compiler() {
+            try {
+                tokenizer = new Tokenizer(new StringReader(""));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            compilationEngine = new CompilationEngine(tokenizer, output);
+        }
+
+        // very large sources, generated ones for instance, are lexed on several threads
+        private Tokenizer tokenizer(String text) throws IOException {
+            if (text.length() >= 2 * ParallelLexer.MIN_CHUNK) tokenizer.reset(ParallelLexer.lex(text));
+            else tokenizer.reset(new StringReader(text));
+            return tokenizer;
+        }
+
+        // the declarations of a source, without ParallelLexer as the bodies are skipped, not lexed
+        private ClassIndex.ClassInfo scan(String text) throws IOException {
+            tokenizer.reset(new StringReader(text));
+            return ClassIndex.scan(tokenizer);
+        }
+
+        private CompiledClass compile(SourceFile source, ClassIndex classIndex, Profile profile,
+                                      SubroutineCache cache) throws IOException {
+            tokenizer(source.text()).advance();
+            output.getBuffer().setLength(0);
+            compilationEngine.reset(tokenizer, output);
+            compilationEngine.setClassIndex(classIndex);
+            compilationEngine.setProfile(profile);
+            compilationEngine.setCache(cache);
+            compilationEngine.compileClass();
+
+            List<VMCommand> commands = parseCommands(output.toString());
+            return new CompiledClass(source.filename(), ClassSignature.of(compilationEngine, commands), commands);
+        }
+    }
+
+    private static final ThreadLocal<Compiler> COMPILER = ThreadLocal.withInitial(Compiler::new);
+
+    private static CompiledClass compile(SourceFile source, ClassIndex classIndex, Profile profile,
+                                         SubroutineCache cache) throws IOException {
+        return COMPILER.get().compile(source, classIndex, profile, cache);
+    }
+
+    // Compiles one class from memory on this thread's compiler, as a directory compile does, for Benchmark
+    static List<VMCommand> compile(String filename, String text, ClassIndex classIndex) throws IOException {
+        return compile(new SourceFile(filename, text, null, null), classIndex, null, null).commands();
+    }
+
+    private static List<VMCommand> parseCommands(String vmCode) {
+        List<VMCommand> commands = new ArrayList<>();
+        for (String line : vmCode.split("\n")) {
+            VMCommand command = VMCommand.parse(line);
+            if (command != null) commands.add(command);
+        }
+        return commands;
+    }
+
+    private static String text(List<VMCommand> commands) {
+        StringBuilder sb = new StringBuilder();
+        for (VMCommand command : commands) {
+            sb.append(command).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Compiles every class before writing any, so calls can be inlined across classes.
+     * When incremental, only the files whose source changed are compiled, and the files that call
+     * a subroutine whose signature changed. The rest keep their .vm file. The subroutines of those
+     * files that didn't change are copied from the cache instead of compiled.
+     * Sources are read and outputs written on their own threads while the workers compile.
+     * The sources and outputs can be on any file system, outputPath gives the .vm file of each source.
+     */
+    private static void handleProgram(Path directory, List<Path> files, Function<String, Path> outputPath,
+                                      Options options) throws IOException {
+        boolean inline = options.inline(), incremental = options.incremental();
+        Path bundle = options.bundle();
+        Profile profile = options.profile();
+        Path dependencyFile = directory.resolve(".jackdeps");
+        DependencyGraph dependencyGraph = incremental ? DependencyGraph.load(dependencyFile) : new DependencyGraph();
+        Path cacheFile = directory.resolve(".jackcache");
+        SubroutineCache cache = incremental ? SubroutineCache.load(cacheFile) : null;
+        Pipeline pipeline = new Pipeline();
+        List<String> filenames = new ArrayList<>();
+        for (Path file : files) filenames.add(file.toString());
+
+        // every source is read once, its declarations are scanned while the next ones are read
+        List<SourceFile> sources = pipeline.read(files, source -> new SourceFile(source.filename(), source.text(),
+                DependencyGraph.hash(source.text()), COMPILER.get().scan(source.text())));
+        List<ClassIndex.ClassInfo> infos = new ArrayList<>();
+        for (SourceFile source : sources) infos.add(source.info());
+        ClassIndex classIndex = ClassIndex.of(infos);
+
+        // without inlining each class is written as soon as it is compiled
+        Function<CompiledClass, Pipeline.Output> writeCompiled = inline | bundle != null ? null :
+                compiledClass -> new Pipeline.Output(outputPath.apply(compiledClass.filename()),
+                        text(compiledClass.commands()));
+
+        List<SourceFile> changed = new ArrayList<>();
+        for (SourceFile source : sources) {
+            if (!incremental || !dependencyGraph.isUpToDate(source.filename(), source.hash()) ||
+                    !Files.exists(outputPath.apply(source.filename()))) {
+                changed.add(source);
+            }
+        }
+        Map<String, CompiledClass> compiled = new LinkedHashMap<>();
+        for (CompiledClass compiledClass : pipeline.process(changed, source -> compile(source, classIndex, profile, cache), writeCompiled)) {
+            compiled.put(compiledClass.filename(), compiledClass);
+        }
+
+        // signatures of every class as of now, by class name
+        Map<String, ClassSignature> signatures = new HashMap<>();
+        for (String filename : filenames) {
+            ClassSignature signature = compiled.containsKey(filename) ?
+                    compiled.get(filename).signature() : dependencyGraph.signature(filename);
+            signatures.put(signature.className(), signature);
+        }
+        List<SourceFile> dependents = new ArrayList<>();
+        for (SourceFile source : sources) {
+            if (!compiled.containsKey(source.filename()) &&
+                    dependencyGraph.referencesChanged(source.filename(), signatures)) {
+                dependents.add(source);
+            }
+        }
+        for (CompiledClass compiledClass : pipeline.process(dependents, source -> compile(source, classIndex, profile, cache), writeCompiled)) {
+            compiled.put(compiledClass.filename(), compiledClass);
+        }
+
+        if (inline | bundle != null) {
+            Map<String, List<VMCommand>> program = new LinkedHashMap<>();
+            for (String filename : filenames) {
+                if (compiled.containsKey(filename)) {
+                    program.put(filename, new ArrayList<>(compiled.get(filename).commands()));
+                } else {
+                    // leaf subroutines are never changed by inlining, so the output still has what callers inline
+                    program.put(filename, parseCommands(Pipeline.readText(outputPath.apply(filename))));
+                }
+            }
+
+            if (inline) {
+                Inliner inliner = new Inliner();
+                inliner.setProfile(profile);
+                inliner.inline(program);
+            }
+
+            if (bundle != null) {
+                writeBundle(bundle, options.bundleIndex(), program, compiled);
+            } else {
+                pipeline.process(new ArrayList<>(compiled.keySet()),
+                        filename -> new Pipeline.Output(outputPath.apply(filename), text(program.get(filename))),
+                        written -> written);
+            }
+            if (options.stackDepths()) {
+                for (String filename : compiled.keySet()) printStackDepths(program.get(filename));
+            }
+        } else if (options.stackDepths()) {
+            for (CompiledClass compiledClass : compiled.values()) printStackDepths(compiledClass.commands());
+        }
+
+        if (incremental) {
+            for (Map.Entry<String, CompiledClass> entry : compiled.entrySet()) {
+                CompiledClass compiledClass = entry.getValue();
+                SourceFile source = sources.get(filenames.indexOf(entry.getKey()));
+                dependencyGraph.record(entry.getKey(), source.hash(), compiledClass.signature(),
+                        compiledClass.commands(), signatures);
+            }
+            dependencyGraph.retain(filenames);
+            dependencyGraph.save(dependencyFile);
+            cache.save(cacheFile, signatures.keySet());
+        }
+    }
+
+    /**
+     * Writes every class into one file, in one sequential stream. The index has a line per class
+     * with the class name, and the byte offset and length of its code in the bundle, before
+     * compression when the bundle is a .gz file.
+     */
+    private static void writeBundle(Path bundle, boolean bundleIndex, Map<String, List<VMCommand>> program,
+                                    Map<String, CompiledClass> compiled) throws IOException {
+        StringBuilder index = new StringBuilder();
+        long offset = 0;
+        try (Writer output = Pipeline.newWriter(bundle)) {
+            for (Map.Entry<String, List<VMCommand>> entry : program.entrySet()) {
+                String text = text(entry.getValue());
+                output.write(text);
+                // VM code is ASCII, so a char is a byte
+                index.append(compiled.get(entry.getKey()).signature().className()).append('\t')
+                        .append(offset).append('\t').append(text.length()).append('\n');
+                offset += text.length();
+            }
+        }
+        if (bundleIndex) Files.writeString(Paths.get(bundle + ".idx"), index);
+    }
+
+    /**
+     * Compiles every .jack entry of a zip or jar archive, read through the zip file system without
+     * extracting anything. The .vm files go into zipOutput when there is one, otherwise next to the
+     * archive, in the same folders as the entries.
+     */
+    private static void handleArchive(Path archive, Path zipOutput, Options options) throws IOException {
+        try (FileSystem sources = FileSystems.newFileSystem(archive);
+             FileSystem outputs = zipOutput == null ? null :
+                     FileSystems.newFileSystem(zipOutput, Map.of("create", "true"))) {
+            Path root = sources.getPath("/");
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(root)) {
+                files = walk.filter(file -> Files.isRegularFile(file) && isSource(file.toString())).sorted()
+                        .toList();
+            }
+
+            Path outputRoot = outputs != null ? outputs.getPath("/") : archive.toAbsolutePath().getParent();
+            Function<String, Path> outputPath = source ->
+                    outputRoot.resolve(root.relativize(sources.getPath(outputName(source, options))).toString());
+            if (options.bundle() == null) {
+                for (Path file : files) {
+                    Path parent = outputPath.apply(file.toString()).getParent();
+                    if (parent != null) Files.createDirectories(parent);
+                }
+            }
+
+            handleProgram(root, files, outputPath, options);
+        }
     }
 
         public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
-            System.out.println("Usage: java JackAnalyzer <filename>");
+        boolean inline = true;
+        boolean incremental = false;
+        Path bundle = null;
+        boolean bundleIndex = false;
+        Path zipOutput = null;
+        Path train = null;
+        Path bench = null;
+        Path profile = null;
+        boolean stackDepths = false;
+        boolean gzip = false;
+        String filename = null;
+        boolean usage = false;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--no-inline")) {
+                inline = false;
+            } else if (arg.equals("--incremental")) {
+                incremental = true;
+            } else if (arg.equals("--bundle") && i + 1 < args.length) {
+                bundle = Paths.get(args[++i]);
+            } else if (arg.equals("--bundle-index")) {
+                bundleIndex = true;
+            } else if (arg.equals("--zip-output") && i + 1 < args.length) {
+                zipOutput = Paths.get(args[++i]);
+            } else if (arg.equals("--profile") && i + 1 < args.length) {
+                profile = Paths.get(args[++i]);
+            } else if (arg.equals("--stack-depth")) {
+                stackDepths = true;
+            } else if (arg.equals("--gzip")) {
+                gzip = true;
+            } else if (arg.equals("--train") && i + 1 < args.length) {
+                train = Paths.get(args[++i]);
+            } else if (arg.equals("--bench") && i + 1 < args.length) {
+                bench = Paths.get(args[++i]);
+            } else if (filename == null) {
+                filename = arg;
+            } else {
+                usage = true;
+            }
+        }
+        if (train != null && args.length == 2) {
+            Training.train(train);
+            return;
+        }
+        if (bench != null && args.length == 2) {
+            Benchmark.run(bench, System.out);
+            return;
+        }
+        // a bundle has every class in it, so there is nothing to keep from the last compile
+        // the sources of an archive can't have their outputs and .jackdeps next to them
+        // a profile changes the code of classes whose source didn't change
+        // training and benchmarks run their own compiles, so they take nothing else
+        // a single class is written to its own .vm file, with no bundle or .jackdeps
+        boolean archive = filename != null && (filename.endsWith(".zip") || filename.endsWith(".jar"));
+        boolean singleFile = filename != null && isSource(filename);
+        if (filename == null || usage || bundle != null & incremental || bundle == null & bundleIndex ||
+                bundle != null & zipOutput != null || archive & incremental || !archive & zipOutput != null ||
+                profile != null & incremental || train != null || bench != null ||
+                singleFile & (bundle != null | incremental)) {
+            System.out.println("Usage: java JackAnalyzer [--no-inline] [--profile <run.profile>] [--stack-depth] [--gzip] " +
+                    "<file.jack>");
+            System.out.println("       java JackAnalyzer [--no-inline] [--profile <run.profile>] [--stack-depth] [--gzip] " +
+                    "[--incremental | --bundle <out.vm> [--bundle-index]] <directory>");
+            System.out.println("       java JackAnalyzer [--no-inline] [--profile <run.profile>] [--stack-depth] [--gzip] " +
+                    "[--bundle <out.vm> [--bundle-index] | --zip-output <out.zip>] <archive.zip>");
+            System.out.println("       java JackAnalyzer --train <classes.jsa>");
+            System.out.println("       java JackAnalyzer --bench <directory>");
+            return;
+        }
+
+        Options options = new Options(inline, incremental, bundle, bundleIndex,
+                profile == null ? null : Profile.load(profile), stackDepths, gzip);
+        if (archive) {
+            handleArchive(Paths.get(filename), zipOutput, options);
             return;
         }
 
-        String filename = args[0];
         // find the last slash
         int slashIndex = filename.lastIndexOf('\\');
         if (slashIndex == -1) slashIndex = filename.lastIndexOf('/');
@@ -29,17 +378,20 @@ public class JackAnalyzer {
         int dotIndex = filename.lastIndexOf('.');
         // Arg is a directory
         if (dotIndex == -1 || dotIndex < slashIndex) {
+            List<Path> files = new ArrayList<>();
             DirectoryStream<Path> directoryStream = Files.newDirectoryStream(Paths.get(filename));
             for (Path file: directoryStream) {
                 String curFileName = file.toString();
-                if (Files.isRegularFile(file) && curFileName.endsWith(".jack")) {
-                    handleFile(curFileName);
+                if (Files.isRegularFile(file) && isSource(curFileName)) {
+                    files.add(file);
                 }
             }
 
+            handleProgram(Paths.get(filename), files, source -> Paths.get(outputName(source, options)), options);
+
         } else {
             // Arg is a file
-            handleFile(filename);
+            handleFile(filename, options);
         }
     }
 }
@@ -0,0 +1,168 @@
+import java.util.*;
+
+/**
+ * Shrinks the frame of a function with liveness analysis of its locals.
+ * A store to a local that is never read afterwards is removed, with the code computing the value when
+ * that has no side effects. The locals left are packed so that locals that are never live at the same
+ * time share a slot, which lowers the local count the function command sets to 0 on every call.
+ * A local read before it is written relies on that 0, so it counts as written at the start.
+ */
+public class LocalSlots {
+    private LocalSlots() {}
+
+    /**
+     * Returns the function with dead stores removed and its locals renumbered. The function starts with
+     * its function command.
+     */
+    public static List<VMCommand> pack(List<VMCommand> function) {
+        if (function.isEmpty() || function.get(0).type() != VMCommand.Type.FUNCTION) return function;
+        if (function.get(0).index() == 0) return function;
+        List<VMCommand> commands = new ArrayList<>(function);
+        while (true) {
+            List<VMCommand> result = removeDeadStores(commands, liveOut(commands));
+            if (result == null) break;
+            commands = result;
+        }
+        return renumber(commands, liveOut(commands));
+    }
+
+    private static boolean isLocal(VMCommand command, VMCommand.Type type) {
+        return command.type() == type && command.segment() == VMWriter.SEGMENT.LOCAL;
+    }
+
+    // Locals live after each command, by index
+    private static BitSet[] liveOut(List<VMCommand> commands) {
+        int size = commands.size();
+        Map<String, Integer> labels = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            if (commands.get(i).type() == VMCommand.Type.LABEL) labels.put(commands.get(i).name(), i);
+        }
+        int[][] successors = new int[size][];
+        for (int i = 0; i < size; i++) {
+            VMCommand command = commands.get(i);
+            int next = i + 1 < size ? i + 1 : -1;
+            Integer target = labels.get(command.name());
+            successors[i] = switch (command.type()) {
+                case GOTO -> target == null ? new int[0] : new int[]{target};
+                case IF -> target == null ? new int[]{next} : new int[]{target, next};
+                case RETURN -> new int[0];
+                default -> new int[]{next};
+            };
+        }
+
+        BitSet[] liveIn = new BitSet[size];
+        BitSet[] liveOut = new BitSet[size];
+        for (int i = 0; i < size; i++) {
+            liveIn[i] = new BitSet();
+            liveOut[i] = new BitSet();
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = size - 1; i >= 0; i--) {
+                BitSet out = new BitSet();
+                for (int successor : successors[i]) {
+                    if (successor >= 0) out.or(liveIn[successor]);
+                }
+                VMCommand command = commands.get(i);
+                BitSet in = (BitSet) out.clone();
+                if (isLocal(command, VMCommand.Type.POP)) in.clear(command.index());
+                if (isLocal(command, VMCommand.Type.PUSH)) in.set(command.index());
+                if (!out.equals(liveOut[i]) || !in.equals(liveIn[i])) {
+                    liveOut[i] = out;
+                    liveIn[i] = in;
+                    changed = true;
+                }
+            }
+        }
+        return liveOut;
+    }
+
+    // null when every store is read
+    private static List<VMCommand> removeDeadStores(List<VMCommand> commands, BitSet[] liveOut) {
+        ExpressionAnalysis analysis = null;
+        boolean[] removed = new boolean[commands.size()];
+        List<VMCommand> result = new ArrayList<>(commands);
+        boolean changed = false;
+        for (int i = 1; i < commands.size(); i++) {
+            VMCommand command = commands.get(i);
+            if (!isLocal(command, VMCommand.Type.POP) || liveOut[i].get(command.index())) continue;
+            changed = true;
+            removed[i] = true;
+            if (commands.get(i - 1).type() == VMCommand.Type.PUSH && !removed[i - 1]) {
+                removed[i - 1] = true;
+                continue;
+            }
+            if (analysis == null) analysis = new ExpressionAnalysis(commands);
+            ExpressionAnalysis.Occurrence value = null;
+            for (ExpressionAnalysis.Occurrence occurrence : analysis.occurrences()) {
+                if (occurrence.end() == i && occurrence.pure()) value = occurrence;
+            }
+            if (value != null) {
+                for (int j = value.start(); j < i; j++) removed[j] = true;
+            } else {
+                // the value has side effects, only the store goes
+                removed[i] = false;
+                result.set(i, VMCommand.pop(VMWriter.SEGMENT.TEMP, 0));
+            }
+        }
+        if (!changed) return null;
+        List<VMCommand> kept = new ArrayList<>(result.size());
+        for (int i = 0; i < result.size(); i++) {
+            if (!removed[i]) kept.add(result.get(i));
+        }
+        return kept;
+    }
+
+    private static List<VMCommand> renumber(List<VMCommand> commands, BitSet[] liveOut) {
+        int nLocals = commands.get(0).index();
+        List<BitSet> interference = new ArrayList<>();
+        for (int local = 0; local < nLocals; local++) interference.add(new BitSet());
+        // the locals live at the start are all written, with 0, at the same time
+        interfere(interference, liveOut[0], liveOut[0]);
+        for (int i = 1; i < commands.size(); i++) {
+            VMCommand command = commands.get(i);
+            if (isLocal(command, VMCommand.Type.POP)) {
+                BitSet written = new BitSet();
+                written.set(command.index());
+                interfere(interference, written, liveOut[i]);
+            }
+        }
+
+        // slots in the order locals are first used
+        int[] slots = new int[nLocals];
+        Arrays.fill(slots, -1);
+        int nSlots = 0;
+        for (VMCommand command : commands) {
+            if (command.segment() != VMWriter.SEGMENT.LOCAL || slots[command.index()] != -1) continue;
+            BitSet taken = new BitSet();
+            BitSet neighbours = interference.get(command.index());
+            for (int other = neighbours.nextSetBit(0); other >= 0; other = neighbours.nextSetBit(other + 1)) {
+                if (slots[other] != -1) taken.set(slots[other]);
+            }
+            slots[command.index()] = taken.nextClearBit(0);
+            nSlots = Math.max(nSlots, slots[command.index()] + 1);
+        }
+
+        List<VMCommand> result = new ArrayList<>(commands.size());
+        result.add(VMCommand.function(commands.get(0).name(), nSlots));
+        for (int i = 1; i < commands.size(); i++) {
+            VMCommand command = commands.get(i);
+            if (command.segment() == VMWriter.SEGMENT.LOCAL) {
+                command = new VMCommand(command.type(), command.segment(), null, null, slots[command.index()]);
+            }
+            result.add(command);
+        }
+        return result;
+    }
+
+    private static void interfere(List<BitSet> interference, BitSet written, BitSet live) {
+        for (int a = written.nextSetBit(0); a >= 0; a = written.nextSetBit(a + 1)) {
+            for (int b = live.nextSetBit(0); b >= 0; b = live.nextSetBit(b + 1)) {
+                if (a == b || a >= interference.size() || b >= interference.size()) continue;
+                interference.get(a).set(b);
+                interference.get(b).set(a);
+            }
+        }
+    }
+}
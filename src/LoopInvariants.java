@@ -0,0 +1,73 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntSupplier;
+
+/**
+ * Loop invariant code motion for while loops. A pure expression in the loop whose reads aren't
+ * written anywhere in the loop has the same value on every iteration, so it is computed once into a
+ * new local before the loop. A call that isn't pure or a store to a field or array element anywhere
+ * in the loop counts as writing all of them, since they may alias.
+ */
+public class LoopInvariants {
+    public record Loop(List<VMCommand> preheader, List<VMCommand> body, List<VMCommand> condition) {}
+
+    private LoopInvariants() {}
+
+    /**
+     * Moves the invariant expressions of the body and condition into the preheader, which runs once
+     * before the loop. newLocal adds a local to the function for each one.
+     */
+    public static Loop hoist(List<VMCommand> body, List<VMCommand> condition, IntSupplier newLocal) {
+        List<VMCommand> preheader = new ArrayList<>();
+        List<VMCommand> loop = new ArrayList<>(body);
+        loop.addAll(condition);
+        int bodySize = body.size();
+        while (true) {
+            ExpressionAnalysis analysis = new ExpressionAnalysis(loop);
+            ExpressionAnalysis.Occurrence invariant = null;
+            for (ExpressionAnalysis.Occurrence occurrence : analysis.occurrences()) {
+                if (!occurrence.pure() || occurrence.size() < 2 || divides(loop, occurrence) ||
+                        analysis.written(occurrence.reads(), 0, loop.size())) {
+                    continue;
+                }
+                // the largest, the ones inside it go with it
+                if (invariant == null || occurrence.size() > invariant.size()) invariant = occurrence;
+            }
+            if (invariant == null) break;
+
+            int local = newLocal.getAsInt();
+            String text = ExpressionAnalysis.text(loop, invariant);
+            preheader.addAll(loop.subList(invariant.start(), invariant.end()));
+            preheader.add(VMCommand.pop(VMWriter.SEGMENT.LOCAL, local));
+
+            // every copy in the loop reads the local instead
+            List<VMCommand> result = new ArrayList<>();
+            int newBodySize = bodySize;
+            int next = 0;
+            for (ExpressionAnalysis.Occurrence occurrence : analysis.occurrences()) {
+                if (!occurrence.pure() || occurrence.start() < next ||
+                        !ExpressionAnalysis.text(loop, occurrence).equals(text)) {
+                    continue;
+                }
+                result.addAll(loop.subList(next, occurrence.start()));
+                result.add(VMCommand.push(VMWriter.SEGMENT.LOCAL, local));
+                if (occurrence.start() < bodySize) newBodySize -= occurrence.size() - 1;
+                next = occurrence.end();
+            }
+            result.addAll(loop.subList(next, loop.size()));
+            loop = result;
+            bodySize = newBodySize;
+        }
+        return new Loop(preheader, new ArrayList<>(loop.subList(0, bodySize)),
+                new ArrayList<>(loop.subList(bodySize, loop.size())));
+    }
+
+    // A division by zero stops the program, so it can't run before a loop that might not run at all
+    private static boolean divides(List<VMCommand> commands, ExpressionAnalysis.Occurrence occurrence) {
+        for (int i = occurrence.start(); i < occurrence.end(); i++) {
+            VMCommand command = commands.get(i);
+            if (command.type() == VMCommand.Type.CALL && command.name().equals("Math.divide")) return true;
+        }
+        return false;
+    }
+}
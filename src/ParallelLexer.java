@@ -0,0 +1,62 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Lexes one large source on several threads. The source is cut into chunks just after a new line,
+ * and each chunk is lexed as if it started outside any token, string or comment. That guess is wrong
+ * when a chunk starts inside a block comment or a string, so the chunks are then checked in order:
+ * a chunk is kept when its first token starts where the chunk before it stopped, otherwise it is
+ * lexed again from there. The tokens are the ones Tokenizer finds going through the source in one pass.
+ */
+public final class ParallelLexer {
+    // smaller sources aren't worth the threads
+    public static final int MIN_CHUNK = 1 << 16;
+
+    private record Chunk(int first, int stop, List<Tokenizer.Token> tokens) {}
+
+    private ParallelLexer() {}
+
+    public static List<Tokenizer.Token> lex(String source) {
+        return lex(source, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static List<Tokenizer.Token> lex(String source, int nChunks) {
+        byte[] text = Tokenizer.bytes(source);
+        int length = text.length;
+        nChunks = Math.max(1, Math.min(nChunks, length / MIN_CHUNK));
+
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+        for (int i = 1; i < nChunks; i++) {
+            int bound = (int) ((long) length * i / nChunks);
+            while (bound < length && text[bound - 1] != '\n') bound++;
+            if (bound > bounds.get(bounds.size() - 1) && bound < length) bounds.add(bound);
+        }
+        bounds.add(length);
+
+        List<Chunk> chunks = IntStream.range(0, bounds.size() - 1).parallel()
+                .mapToObj(i -> lexChunk(text, bounds.get(i), bounds.get(i + 1)))
+                .toList();
+
+        List<Tokenizer.Token> tokens = new ArrayList<>();
+        int stop = Tokenizer.skip(text, 0, length);
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            if (chunk.first() != stop) {
+                // the chunk started inside a comment, a string or a token that began before it
+                chunk = lexChunk(text, stop, bounds.get(i + 1));
+            }
+            tokens.addAll(chunk.tokens());
+            stop = chunk.stop();
+        }
+        return tokens;
+    }
+
+    private static Chunk lexChunk(byte[] text, int start, int end) {
+        List<Tokenizer.Token> tokens = new ArrayList<>();
+        int first = Tokenizer.skip(text, start, text.length);
+        int stop = Tokenizer.lex(text, first, end, text.length, tokens);
+        return new Chunk(first, stop, tokens);
+    }
+}
@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Staged pipeline for directory compiles. One I/O thread feeds the inputs, reading the sources from
+ * disk when needed, worker threads run the CPU bound stage, and another I/O thread writes the outputs.
+ * The stages are connected by bounded queues, a full queue blocks the stage feeding it, so slow reads
+ * or writes hold the other stages back instead of piling up in memory.
+ * Files whose name ends with .gz are read and written gzip compressed.
+ */
+public class Pipeline {
+    public record Source(String filename, String text) {}
+
+    public record Output(Path path, String text) {}
+
+    public interface Stage<T, R> {
+        R apply(T input) throws IOException;
+    }
+
+    private interface Producer<T> {
+        T produce(int index) throws IOException;
+    }
+
+    private record Job<T>(int index, T input) {}
+
+    private static final Job<?> END = new Job<>(-1, null);
+    private static final Output END_OUTPUT = new Output(null, null);
+
+    private final int workers;
+    private final int capacity;
+
+    public Pipeline() {
+        this(Runtime.getRuntime().availableProcessors(), 16);
+    }
+
+    public Pipeline(int workers, int capacity) {
+        this.workers = Math.max(1, workers);
+        this.capacity = Math.max(1, capacity);
+    }
+
+    public static String readText(Path path) throws IOException {
+        if (!isCompressed(path)) return Files.readString(path);
+        try (InputStream input = new GZIPInputStream(Files.newInputStream(path))) {
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    public static void writeText(Path path, String text) throws IOException {
+        try (Writer writer = newWriter(path)) {
+            writer.write(text);
+        }
+    }
+
+    // Compresses what is written as it goes when the name ends with .gz
+    public static Writer newWriter(Path path) throws IOException {
+        if (!isCompressed(path)) return Files.newBufferedWriter(path);
+        return new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(path), 1 << 16),
+                StandardCharsets.UTF_8);
+    }
+
+    private static boolean isCompressed(Path path) {
+        return path.toString().endsWith(".gz");
+    }
+
+    /**
+     * Reads the files on the I/O thread and runs stage on each as soon as it has been read.
+     * The files can be on any file system, a zip archive for one. The results are in the order of files.
+     */
+    public <R> List<R> read(List<Path> files, Stage<Source, R> stage) throws IOException {
+        return run(files.size(), index -> new Source(files.get(index).toString(), readText(files.get(index))),
+                stage, null);
+    }
+
+    /**
+     * Runs stage on each input. When output isn't null, what it returns for a result is written on
+     * the I/O thread while the workers go on, null means nothing to write.
+     * The results are in the order of inputs.
+     */
+    public <T, R> List<R> process(List<T> inputs, Stage<T, R> stage, Function<R, Output> output)
+            throws IOException {
+        return run(inputs.size(), inputs::get, stage, output);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T, R> List<R> run(int size, Producer<T> producer, Stage<T, R> stage, Function<R, Output> output)
+            throws IOException {
+        BlockingQueue<Job<T>> jobs = new ArrayBlockingQueue<>(capacity);
+        BlockingQueue<Output> outputs = new ArrayBlockingQueue<>(capacity);
+        Object[] results = new Object[size];
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        int nWorkers = Math.min(workers, Math.max(size, 1));
+
+        Thread reader = new Thread(() -> {
+            try {
+                for (int index = 0; index < size; index++) {
+                    jobs.put(new Job<>(index, producer.produce(index)));
+                }
+                for (int worker = 0; worker < nWorkers; worker++) jobs.put((Job<T>) END);
+            } catch (Throwable e) {
+                fail(failure, e, threads);
+            }
+        }, "pipeline-read");
+        threads.add(reader);
+
+        List<Thread> workerThreads = new ArrayList<>();
+        for (int worker = 0; worker < nWorkers; worker++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    for (Job<T> job = jobs.take(); job != END; job = jobs.take()) {
+                        R result = stage.apply(job.input());
+                        results[job.index()] = result;
+                        Output written = output == null ? null : output.apply(result);
+                        if (written != null) outputs.put(written);
+                    }
+                } catch (Throwable e) {
+                    fail(failure, e, threads);
+                }
+            }, "pipeline-work-" + worker);
+            workerThreads.add(thread);
+        }
+        threads.addAll(workerThreads);
+
+        Thread writer = new Thread(() -> {
+            try {
+                for (Output written = outputs.take(); written != END_OUTPUT; written = outputs.take()) {
+                    writeText(written.path(), written.text());
+                }
+            } catch (Throwable e) {
+                fail(failure, e, threads);
+            }
+        }, "pipeline-write");
+        threads.add(writer);
+
+        for (Thread thread : threads) thread.start();
+        try {
+            for (Thread thread : workerThreads) thread.join();
+            if (failure.get() == null) outputs.put(END_OUTPUT);
+            writer.join();
+            reader.join();
+        } catch (InterruptedException e) {
+            fail(failure, e, threads);
+            Thread.currentThread().interrupt();
+        }
+
+        Throwable e = failure.get();
+        if (e instanceof IOException ioException) throw ioException;
+        if (e instanceof UncheckedIOException uncheckedIOException) throw uncheckedIOException.getCause();
+        if (e instanceof RuntimeException runtimeException) throw runtimeException;
+        if (e instanceof Error error) throw error;
+        if (e != null) throw new IOException(e);
+        return (List<R>) Arrays.asList(results);
+    }
+
+    // Keeps the first failure and stops every stage, so nothing waits on a queue that won't move
+    private static void fail(AtomicReference<Throwable> failure, Throwable e, List<Thread> threads) {
+        if (failure.compareAndSet(null, e)) {
+            for (Thread thread : threads) {
+                if (thread != Thread.currentThread()) thread.interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Execution counts of a run under VMInterpreter, for the compiler to lay out branches, inline and
+ * pool string literals where the program spends its time. One line per count, tab separated:
+ * <pre>
+ * function  Main.fact  5                   calls of the function
+ * call      Main.main  Main.fact  1        calls from one function to another
+ * branch    Main.main  L3  7  3            if-gotos to the label taken and not taken
+ * jump      Main.main  L2  7               gotos to the label
+ * </pre>
+ * Labels are scoped to their function, as in the VM code. Calls that were inlined don't run, so a
+ * profile taken with --no-inline knows about every call site.
+ */
+public class Profile {
+    private final Map<String, Long> functions = new TreeMap<>();
+    private final Map<String, Long> calls = new TreeMap<>();
+    private final Map<String, long[]> branches = new TreeMap<>();
+    private final Map<String, Long> jumps = new TreeMap<>();
+
+    public static Profile load(Path path) throws IOException {
+        Profile profile = new Profile();
+        for (String line : Files.readAllLines(path)) {
+            String[] fields = line.split("\t");
+            switch (fields[0]) {
+                case "function" -> profile.addFunction(fields[1], Long.parseLong(fields[2]));
+                case "call" -> profile.addCall(fields[1], fields[2], Long.parseLong(fields[3]));
+                case "branch" -> profile.addBranch(fields[1], fields[2], Long.parseLong(fields[3]),
+                        Long.parseLong(fields[4]));
+                case "jump" -> profile.addJump(fields[1], fields[2], Long.parseLong(fields[3]));
+                default -> {
+                    if (!line.isBlank()) throw new IOException("Unknown profile line: " + line);
+                }
+            }
+        }
+        return profile;
+    }
+
+    public void save(Path path) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        functions.forEach((function, count) -> sb.append("function\t").append(function).append('\t')
+                .append(count).append('\n'));
+        calls.forEach((key, count) -> sb.append("call\t").append(key).append('\t').append(count).append('\n'));
+        branches.forEach((key, counts) -> sb.append("branch\t").append(key).append('\t').append(counts[0])
+                .append('\t').append(counts[1]).append('\n'));
+        jumps.forEach((key, count) -> sb.append("jump\t").append(key).append('\t').append(count).append('\n'));
+        Files.writeString(path, sb.toString());
+    }
+
+    public void addFunction(String function, long count) {
+        functions.merge(function, count, Long::sum);
+    }
+
+    public void addCall(String caller, String callee, long count) {
+        calls.merge(caller + "\t" + callee, count, Long::sum);
+    }
+
+    public void addBranch(String function, String label, long taken, long notTaken) {
+        long[] counts = branches.computeIfAbsent(function + "\t" + label, key -> new long[2]);
+        counts[0] += taken;
+        counts[1] += notTaken;
+    }
+
+    public void addJump(String function, String label, long count) {
+        jumps.merge(function + "\t" + label, count, Long::sum);
+    }
+
+    public long calls(String function) {
+        return functions.getOrDefault(function, 0L);
+    }
+
+    // -1 when the call isn't in the profile
+    public long calls(String caller, String callee) {
+        return calls.getOrDefault(caller + "\t" + callee, -1L);
+    }
+
+    // Taken and not taken counts of the if-gotos to the label, null if none ran
+    public long[] branch(String function, String label) {
+        return branches.get(function + "\t" + label);
+    }
+
+    public long jumps(String function, String label) {
+        return jumps.getOrDefault(function + "\t" + label, 0L);
+    }
+
+    // How often the label was jumped back to, by if-gotos or gotos, so the iterations of a loop
+    public long backEdges(String function, String label) {
+        long[] branch = branch(function, label);
+        return (branch == null ? 0 : branch[0]) + jumps(function, label);
+    }
+}
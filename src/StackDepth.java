@@ -0,0 +1,83 @@
+import java.util.*;
+
+/**
+ * Height of the working stack of VM code: what pushes, arithmetic and calls leave above the frame
+ * of the function. Calls count their arguments until the result replaces them.
+ */
+public class StackDepth {
+    private StackDepth() {}
+
+    // Change of the stack height by the command
+    static int effect(VMCommand command) {
+        return switch (command.type()) {
+            case PUSH -> 1;
+            case POP, IF, RETURN -> -1;
+            case ARITHMETIC -> command.command() == VMWriter.ARITHMETIC_COMMAND.NEG ||
+                    command.command() == VMWriter.ARITHMETIC_COMMAND.NOT ? 0 : -1;
+            case CALL -> 1 - command.index();
+            default -> 0;
+        };
+    }
+
+    // Highest the stack gets above where it was going through straight-line code, labels and jumps included
+    public static int max(List<VMCommand> code) {
+        int height = 0;
+        int max = 0;
+        for (VMCommand command : code) {
+            height += effect(command);
+            max = Math.max(max, height);
+        }
+        return max;
+    }
+
+    /**
+     * The highest stack of each function in commands, following the jumps, in the order of the
+     * functions.
+     */
+    public static Map<String, Integer> ofFunctions(List<VMCommand> commands) {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        for (int start = 0; start < commands.size(); start++) {
+            if (commands.get(start).type() != VMCommand.Type.FUNCTION) continue;
+            int end = start + 1;
+            while (end < commands.size() && commands.get(end).type() != VMCommand.Type.FUNCTION) end++;
+            depths.put(commands.get(start).name(), ofFunction(commands.subList(start + 1, end)));
+            start = end - 1;
+        }
+        return depths;
+    }
+
+    private static int ofFunction(List<VMCommand> body) {
+        Map<String, Integer> labels = new HashMap<>();
+        for (int i = 0; i < body.size(); i++) {
+            if (body.get(i).type() == VMCommand.Type.LABEL) labels.put(body.get(i).name(), i);
+        }
+        // height before each command, -1 until some path reaches it
+        int[] heights = new int[body.size() + 1];
+        Arrays.fill(heights, -1);
+        Deque<Integer> work = new ArrayDeque<>();
+        heights[0] = 0;
+        work.push(0);
+        int max = 0;
+        while (!work.isEmpty()) {
+            int i = work.pop();
+            if (i >= body.size()) continue;
+            VMCommand command = body.get(i);
+            int height = heights[i] + effect(command);
+            max = Math.max(max, height);
+            List<Integer> next = new ArrayList<>(2);
+            if (command.type() != VMCommand.Type.GOTO && command.type() != VMCommand.Type.RETURN) next.add(i + 1);
+            if (command.type() == VMCommand.Type.GOTO || command.type() == VMCommand.Type.IF) {
+                Integer target = labels.get(command.name());
+                if (target != null) next.add(target);
+            }
+            // every path to a command has the same height in code the compiler writes
+            for (int successor : next) {
+                if (heights[successor] == -1) {
+                    heights[successor] = height;
+                    work.push(successor);
+                }
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The VM code of each subroutine compiled, for a class compiled again to reuse the code of the
+ * subroutines that didn't change. An entry is found by a hash of the tokens of the subroutine and of
+ * the fields and statics of its class, and is only used while the other classes still answer the same
+ * to the method or function questions its calls asked. Labels start over in each subroutine, so the
+ * code doesn't depend on the subroutines before it.
+ */
+public class SubroutineCache {
+    /**
+     * The code of a subroutine, its entry in the class signature, and whether each subroutine it
+     * called was taken for a method.
+     */
+    public record Entry(String className, String signature, Map<String, Boolean> methods, String code) {}
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // keys looked up or stored since loading, and the classes they belong to
+    private final Set<String> used = ConcurrentHashMap.newKeySet();
+    private final Set<String> compiledClasses = ConcurrentHashMap.newKeySet();
+    private int hits;
+
+    public static SubroutineCache load(Path file) throws IOException {
+        SubroutineCache cache = new SubroutineCache();
+        if (!Files.exists(file)) return cache;
+
+        String key = null, className = null, signature = null;
+        Map<String, Boolean> methods = null;
+        StringBuilder code = null;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] parts = line.split("\t", 2);
+            switch (parts[0]) {
+                case "sub" -> {
+                    String[] fields = parts[1].split("\t");
+                    key = fields[0];
+                    className = fields[1];
+                    signature = fields[2];
+                    methods = new TreeMap<>();
+                    code = new StringBuilder();
+                }
+                case "method" -> {
+                    String[] fields = parts[1].split("\t");
+                    methods.put(fields[0], Boolean.parseBoolean(fields[1]));
+                }
+                case "code" -> code.append(parts[1]).append('\n');
+                case "end" -> cache.entries.put(key, new Entry(className, signature, methods, code.toString()));
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Writes the entries used since loading, and those of the other classes in classNames, which
+     * weren't compiled this time.
+     */
+    public void save(Path file, Set<String> classNames) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> cacheEntry : new TreeMap<>(entries).entrySet()) {
+                Entry entry = cacheEntry.getValue();
+                if (!used.contains(cacheEntry.getKey()) &&
+                        (compiledClasses.contains(entry.className()) || !classNames.contains(entry.className()))) {
+                    continue;
+                }
+                writer.write("sub\t" + cacheEntry.getKey() + "\t" + entry.className() + "\t" + entry.signature() + "\n");
+                for (Map.Entry<String, Boolean> method : entry.methods().entrySet()) {
+                    writer.write("method\t" + method.getKey() + "\t" + method.getValue() + "\n");
+                }
+                for (String line : entry.code().split("\n")) {
+                    writer.write("code\t" + line + "\n");
+                }
+                writer.write("end\n");
+            }
+        }
+    }
+
+    // The entry stored under key, null if there is none
+    public Entry get(String key, String className) {
+        compiledClasses.add(className);
+        Entry entry = entries.get(key);
+        if (entry != null) used.add(key);
+        return entry;
+    }
+
+    public void put(String key, Entry entry) {
+        compiledClasses.add(entry.className());
+        entries.put(key, entry);
+        used.add(key);
+    }
+
+    // Called when an entry was spliced in instead of compiling its subroutine
+    synchronized void hit() {
+        hits++;
+    }
+
+    public synchronized int hits() {
+        return hits;
+    }
+}
@@ -1,9 +1,10 @@
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 public class SymbolTable {
     private record SymbolTableEntry(String type, KIND kind, int number) {}
-    private Map<String, SymbolTableEntry> table;
+    private final Map<String, SymbolTableEntry> table;
     private final Map<KIND, Integer> indexMap;
     
     public enum KIND {STATIC, FIELD, ARG, VAR, NONE}
@@ -17,8 +18,9 @@ public class SymbolTable {
         indexMap.put(KIND.VAR, 0);
     }
     
+    // Empties the table for the next subroutine or class, keeping the map's capacity
     public void reset() {
-        this.table = new HashMap<>();
+        table.clear();
         indexMap.put(KIND.STATIC, 0);
         indexMap.put(KIND.FIELD, 0);
         indexMap.put(KIND.ARG, 0);
@@ -50,4 +52,12 @@ public class SymbolTable {
     public int indexOf(String name) {
         return table.get(name).number;
     }
+
+    // Every name with its kind, type and index, in name order
+    public String layout() {
+        StringBuilder sb = new StringBuilder();
+        new TreeMap<>(table).forEach((name, entry) -> sb.append(name).append(' ').append(entry.kind).append(' ')
+                .append(entry.type).append(' ').append(entry.number).append('\n'));
+        return sb.toString();
+    }
 }
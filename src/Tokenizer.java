@@ -1,27 +1,72 @@
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.zip.GZIPInputStream;
 
 public class Tokenizer {
-    private final FileReader scanner;
+    // the whole source as UTF-8, kept between files so its capacity is reused
+    private byte[] text = new byte[8192];
+    private char[] chars = new char[8192];
+    private int length;
+    // start of the next token
+    private int position;
+    // tokens lexed ahead of time, null when lexing the source one token at a time
+    private List<Token> tokens;
+    private int nextToken;
     private String token;
     private TokenType tokenType;
     private boolean isEnd;
-    private boolean foundSlash;
-    private char curChar;
+    // tokens lexed by peek and not advanced to yet, a ring of slots from aheadStart
+    private final Lookahead[] ahead = new Lookahead[LOOKAHEAD];
+    private int aheadStart;
+    private int aheadCount;
+
+    // how many tokens past the current one peek can see
+    public static final int LOOKAHEAD = 4;
 
     public enum TokenType {KEYWORD, SYMBOL, IDENTIFIER, INT_CONST, STRING_CONST}
 
+    public record Token(TokenType type, String text) {}
+
+    // The current token and where the one after it starts, to go back to with rewind
+    public record Checkpoint(TokenType tokenType, String token, int next) {}
+
+    /**
+     * A token seen with peek. The slots are reused for the tokens after them, so one is only good
+     * until the next advance.
+     */
+    public static final class Lookahead {
+        private TokenType type;
+        private String text;
+        private int start;
+
+        public TokenType type() {
+            return type;
+        }
+
+        public String text() {
+            return text;
+        }
+
+        public boolean isSymbol(char symbol) {
+            return type == TokenType.SYMBOL && text.charAt(0) == symbol;
+        }
+    }
+
     public enum KeyWord {CLASS, METHOD, FUNCTION, CONSTRUCTOR, INT, BOOLEAN, CHAR, VOID,
     VAR, STATIC, FIELD, LET, DO, IF, ELSE, WHILE, RETURN, TRUE, FALSE, NULL, THIS, STRING}
 
-    private static final Set<Character> SYMBOLS = new HashSet<>();
+    private static final boolean[] SYMBOLS = new boolean[128];
 
     static {
         String symbols = "{}()[].,;+-*/&|<>=~";
         for (char symbol : symbols.toCharArray()) {
-            SYMBOLS.add(symbol);
+            SYMBOLS[symbol] = true;
         }
     }
 
@@ -74,26 +119,65 @@ public class Tokenizer {
         KEYMAP.put("return", KeyWord.RETURN);
     }
 
+    {
+        for (int i = 0; i < LOOKAHEAD; i++) ahead[i] = new Lookahead();
+    }
+
     public Tokenizer(String filePath) throws IOException {
-        // Opens the file
-        File file = new File(filePath);
-        scanner = new FileReader(file);
-        isEnd = false;
-        // get first char that isn't white space or comment
-        int charRead = scanner.read();
-        curChar = (char) charRead;
-        while (curChar == '/') {
-            advanceComment();
-        }
-        // skip leading white space and new lines
-        while (charRead != -1 && (curChar == ' ' | curChar == '\n' | curChar == '\t' | curChar == '\r')) {
-            charRead = scanner.read();
-            curChar = (char) charRead;
-            while (curChar == '/') {
-                advanceComment();
+        // Opens the file, decompressing a .gz one as it is read
+        this(filePath.endsWith(".gz") ?
+                new InputStreamReader(new GZIPInputStream(new FileInputStream(filePath)), StandardCharsets.UTF_8) :
+                new FileReader(new File(filePath)));
+    }
+
+    // Tokenizes source that is already in memory, or any other reader
+    public Tokenizer(Reader reader) throws IOException {
+        reset(reader);
+    }
+
+    // Goes over tokens that were already lexed, by ParallelLexer for one
+    public Tokenizer(List<Token> tokens) {
+        reset(tokens);
+    }
+
+    // Starts over on another source, so one tokenizer can be used for many files
+    public void reset(Reader reader) throws IOException {
+        int nChars = 0;
+        try (reader) {
+            int read;
+            while ((read = reader.read(chars, nChars, chars.length - nChars)) != -1) {
+                nChars += read;
+                if (nChars == chars.length) chars = Arrays.copyOf(chars, chars.length * 2);
             }
         }
-        if (charRead == -1 & !foundSlash) isEnd = true;
+        if (text.length < nChars) text = new byte[chars.length];
+        length = 0;
+        while (length < nChars && chars[length] < 0x80) {
+            text[length] = (byte) chars[length];
+            length++;
+        }
+        if (length < nChars) {
+            // not all ASCII
+            text = new String(chars, 0, nChars).getBytes(StandardCharsets.UTF_8);
+            length = text.length;
+        }
+        tokens = null;
+        aheadCount = 0;
+        token = null;
+        tokenType = null;
+        // get first char that isn't white space or comment
+        position = skip(text, 0, length);
+        isEnd = position >= length;
+    }
+
+    public void reset(List<Token> tokens) {
+        this.tokens = tokens;
+        aheadCount = 0;
+        length = 0;
+        nextToken = 0;
+        token = null;
+        tokenType = null;
+        isEnd = tokens.isEmpty();
     }
 
     public boolean hasMoreTokens() {
@@ -101,132 +185,211 @@ public class Tokenizer {
     }
 
     public void advance() throws IOException {
-        // Always starts at curChar
-        int charRead;
-        // When removing comments at end of last processing, a slash could have been found instead
-        // check this first. If a slash was found curChar would already be at next
-        if (foundSlash) {
-            token = "/";
-            tokenType = TokenType.SYMBOL;
-            foundSlash = false;
-            if (curChar == (char) -1) isEnd = true;
+        // past the last token, the closing } of the class, there is nothing left to read
+        if (isEnd) return;
+        if (tokens != null) {
+            Token next = tokens.get(nextToken++);
+            token = next.text();
+            tokenType = next.type();
+            isEnd = nextToken >= tokens.size();
             return;
         }
-        // if first character is a symbol process symbol
-        else if (SYMBOLS.contains(curChar)) {
-            tokenType = TokenType.SYMBOL;
-            token = String.valueOf(curChar);
-
-            charRead = scanner.read(); // advance to next char for next time
-            curChar = (char) charRead;
+        if (aheadCount > 0) {
+            Lookahead next = ahead[aheadStart];
+            token = next.text;
+            tokenType = next.type;
+            aheadStart = (aheadStart + 1) % LOOKAHEAD;
+            aheadCount--;
+        } else {
+            int end = lexToken(text, position, length);
+            token = textOf(text, position, end);
+            tokenType = typeOf(text[position], token);
+            // skip trailing white space, new lines and comments
+            position = skip(text, end, length);
         }
-        else if (curChar == '"') {
-            // if first character is a " process string
-            StringBuilder sb = new StringBuilder();
-            charRead = scanner.read();
-            curChar = (char) charRead; // skip opening "
-            while (curChar != '"') {
-                sb.append(curChar);
-                charRead = scanner.read();
-                curChar = (char) charRead;
-            }
+        isEnd = aheadCount == 0 && position >= length;
+    }
 
-            charRead = scanner.read();
-            curChar = (char) charRead; // advance to skip closing "
+    public Checkpoint checkpoint() {
+        int next = tokens != null ? nextToken : aheadCount > 0 ? ahead[aheadStart].start : position;
+        return new Checkpoint(tokenType, token, next);
+    }
 
-            token = sb.toString();
-            tokenType = TokenType.STRING_CONST;
+    // Goes back to a checkpoint of the same source, the tokens after it are lexed again
+    public void rewind(Checkpoint checkpoint) {
+        tokenType = checkpoint.tokenType();
+        token = checkpoint.token();
+        aheadCount = 0;
+        if (tokens != null) {
+            nextToken = checkpoint.next();
+            isEnd = nextToken >= tokens.size();
+        } else {
+            position = checkpoint.next();
+            isEnd = position >= length;
         }
-        else if (Character.isDigit(curChar)) {
-            // if first character is a digit process digit
-            StringBuilder sb = new StringBuilder();
-            sb.append(curChar);
-            charRead = scanner.read();
-            curChar = (char) charRead;
-            while (charRead != -1) {
-                if (!Character.isDigit(curChar)) break;
-                sb.append(curChar);
-                charRead = scanner.read();
-                curChar = (char) charRead;
-            }
-            token = sb.toString();
-            tokenType = TokenType.INT_CONST;
+    }
 
-            // Don't advance since there can be a symbol here needed for next time
-        } else {
-            // it's either a keyword or an identifier
-            // build string until space or symbol or end
-            StringBuilder sb = new StringBuilder();
-            sb.append(curChar);
-            charRead = scanner.read();
-            curChar = (char) charRead;
-            while (charRead != -1 &&
-                    curChar != ' ' && !SYMBOLS.contains(curChar)) {
-
-                sb.append(curChar);
-                charRead = scanner.read();
-                curChar = (char) charRead;
-            }
-            token = sb.toString();
-            if (token.charAt(0) != '_' && KEYWORDS.contains(token)) {
-                // Token is a keyword
-                tokenType = TokenType.KEYWORD;
-            } else {
-                tokenType = TokenType.IDENTIFIER;
-            }
-            // Don't advance since there can be a symbol here needed for next time
+    /**
+     * The token k after the current one, 1 for the next, without advancing to it, or null past the
+     * end. Tokens peeked at are lexed once and advance takes them from the ring.
+     */
+    public Lookahead peek(int k) {
+        if (k < 1 || k > LOOKAHEAD) {
+            throw new IllegalArgumentException("Can only peek 1 to " + LOOKAHEAD + " tokens ahead, not " + k);
         }
-        // skip trailing white space and new lines
-        while (curChar == '/') {
-            advanceComment();
+        if (tokens != null) {
+            if (nextToken + k > tokens.size()) return null;
+            Token next = tokens.get(nextToken + k - 1);
+            Lookahead slot = ahead[k - 1];
+            slot.type = next.type();
+            slot.text = next.text();
+            return slot;
         }
-        while (charRead != -1 & (curChar == ' ' | curChar == '\n' | curChar == '\t' | curChar == '\r')) {
-            charRead = scanner.read();
-            curChar = (char) charRead;
-            while (curChar == '/') {
-                advanceComment();
-            }
+        while (aheadCount < k) {
+            if (position >= length) return null;
+            Lookahead slot = ahead[(aheadStart + aheadCount) % LOOKAHEAD];
+            slot.start = position;
+            int end = lexToken(text, position, length);
+            slot.text = textOf(text, position, end);
+            slot.type = typeOf(text[position], slot.text);
+            position = skip(text, end, length);
+            aheadCount++;
         }
-        if (charRead == -1 & !foundSlash) isEnd = true;
-
+        return ahead[(aheadStart + k - 1) % LOOKAHEAD];
     }
 
-    private void advanceComment() throws IOException {
-        int charRead = scanner.read();
-        curChar = (char) charRead;
-        if (curChar == '*') {
-            charRead = scanner.read();
-            curChar = (char) charRead;
-            char prev;
-            // advance until */
-            while (charRead != -1) {
-                prev = curChar;
-                charRead = scanner.read();
-                curChar = (char) charRead;
-                if (prev == '*' & curChar == '/') {
-                    charRead = scanner.read();
-                    curChar = (char) charRead;
-                    break;
+    /**
+     * Skips the block the current token, a {, opens, and makes its closing } the current token. The
+     * source in between is only searched for braces, past strings and comments, not lexed.
+     */
+    public void skipBlock() throws IOException {
+        int depth = 1;
+        if (tokens != null) {
+            while (depth > 0 && !isEnd) {
+                advance();
+                if (tokenType == TokenType.SYMBOL) {
+                    if (token.charAt(0) == '{') depth++;
+                    else if (token.charAt(0) == '}') depth--;
                 }
             }
-        } else if (curChar == '/') {
-            charRead = scanner.read();
-            curChar = (char) charRead;
-            // advance until next line
-            while (charRead != -1 & curChar != '\n') {
-                charRead = scanner.read();
-                curChar = (char) charRead;
+            return;
+        }
+        // tokens peeked at are searched again
+        if (aheadCount > 0) position = ahead[aheadStart].start;
+        aheadCount = 0;
+        while (position < length) {
+            byte c = text[position];
+            if (c == '"') {
+                position = lexToken(text, position, length);
+                continue;
+            }
+            if (c == '/') {
+                int next = skip(text, position, length);
+                if (next > position) {
+                    position = next;
+                    continue;
+                }
+            } else if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth == 0) {
+                break;
             }
-            charRead = scanner.read();
-            curChar = (char) charRead;
-            if (curChar == '\r') {
-                charRead = scanner.read();
-                curChar = (char) charRead;
+            position++;
+        }
+        if (position < length) {
+            token = "}";
+            tokenType = TokenType.SYMBOL;
+            position = skip(text, position + 1, length);
+        }
+        isEnd = position >= length;
+    }
+
+    /**
+     * Lexes the tokens that start in text from start up to end, skipping the white space and comments
+     * before start. Tokens and comments that go past end are finished, so tokens then has every token
+     * starting before the returned position, the start of the next token or length.
+     */
+    static int lex(byte[] text, int start, int end, int length, List<Token> tokens) {
+        int position = skip(text, start, length);
+        while (position < end && position < length) {
+            int tokenEnd = lexToken(text, position, length);
+            tokens.add(token(text, position, tokenEnd));
+            position = skip(text, tokenEnd, length);
+        }
+        return position;
+    }
+
+    // Start of the first token at or after position, or length
+    static int skip(byte[] text, int position, int length) {
+        while (true) {
+            position = ByteScan.skipWhitespace(text, position, length);
+            if (position + 1 >= length || text[position] != '/') return position;
+            if (text[position + 1] == '/') {
+                // advance until next line
+                position = ByteScan.lineEnd(text, position + 2, length);
+            } else if (text[position + 1] == '*') {
+                // advance until */
+                position = ByteScan.commentEnd(text, position + 2, length);
+            } else {
+                return position;
             }
+        }
+    }
+
+    // Source text as the UTF-8 bytes the tokenizer scans
+    static byte[] bytes(String source) {
+        return source.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // End of the token starting at position
+    private static int lexToken(byte[] text, int position, int length) {
+        byte c = text[position];
+        if (isSymbol(c)) return position + 1;
+        if (c == '"') {
+            int end = position + 1;
+            while (end < length && text[end] != '"') end++;
+            // past the closing "
+            return Math.min(end + 1, length);
+        }
+        int end = position + 1;
+        if (isDigit(c)) {
+            while (end < length && isDigit(text[end])) end++;
         } else {
-            foundSlash = true;
+            // keyword or identifier, up to white space or a symbol
+            while (end < length && !ByteScan.isWhitespace(text[end]) && !isSymbol(text[end])) end++;
+        }
+        return end;
+    }
+
+    private static Token token(byte[] text, int start, int end) {
+        String word = textOf(text, start, end);
+        return new Token(typeOf(text[start], word), word);
+    }
+
+    // The text of the token from start to end, a string constant without its quotes
+    private static String textOf(byte[] text, int start, int end) {
+        if (text[start] == '"') {
+            int close = text[end - 1] == '"' && end - start > 1 ? end - 1 : end;
+            return new String(text, start + 1, close - start - 1, StandardCharsets.UTF_8);
         }
-        if (charRead == -1) isEnd = true;
+        return new String(text, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    // The type of a token that starts with c, from its text
+    private static TokenType typeOf(byte c, String word) {
+        if (isSymbol(c)) return TokenType.SYMBOL;
+        if (c == '"') return TokenType.STRING_CONST;
+        if (isDigit(c)) return TokenType.INT_CONST;
+        if (c != '_' && KEYWORDS.contains(word)) return TokenType.KEYWORD;
+        return TokenType.IDENTIFIER;
+    }
+
+    private static boolean isSymbol(byte c) {
+        return c >= 0 && SYMBOLS[c];
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
     }
 
     public TokenType tokenType() {
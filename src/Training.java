@@ -0,0 +1,127 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Writes an AppCDS archive of the classes a compile loads, for JVMs started with
+ * -XX:SharedArchiveFile to map them instead of loading and verifying them again, as the jackc
+ * launcher does. The JVM only archives classes from jars, so the compiler has to run from one.
+ * The archive is dumped by a second JVM that compiles the sample program below, one file and then
+ * the whole directory, and exits.
+ */
+public final class Training {
+    private static final String MAIN = """
+            class Main {
+                static int count;
+
+                function void main() {
+                    var Array values;
+                    var Point p;
+                    var int i, sum;
+                    var String name;
+                    let values = Array.new(10);
+                    let i = 0;
+                    while (i < 10) {
+                        let values[i] = i * i;
+                        let i = i + 1;
+                    }
+                    let i = 0;
+                    while (i < 10) {
+                        if (values[i] > 20) {
+                            let sum = sum + values[i];
+                        } else {
+                            let sum = sum - (values[i] / 2);
+                        }
+                        let i = i + 1;
+                    }
+                    let p = Point.new(3, -4);
+                    do p.move(sum, ~count);
+                    let name = "trained";
+                    do Output.printString(name);
+                    do Output.printInt(Main.fact(5, 1) + p.getX());
+                    do values.dispose();
+                    return;
+                }
+
+                // a tail call, so the path that turns it into a jump is loaded too
+                function int fact(int n, int product) {
+                    if (n < 2) {
+                        return product;
+                    }
+                    return Main.fact(n - 1, product * n);
+                }
+            }
+            """;
+
+    private static final String POINT = """
+            /** A point with a position that can move. */
+            class Point {
+                field int x, y;
+
+                constructor Point new(int ax, int ay) {
+                    let x = ax;
+                    let y = ay;
+                    return this;
+                }
+
+                method int getX() { return x; }
+
+                method void move(int dx, int dy) {
+                    let x = x + dx;
+                    let y = y + dy;
+                    return;
+                }
+            }
+            """;
+
+    private Training() {}
+
+    /** Dumps the archive from a JVM running the sample compile, waiting for it to finish. */
+    public static void train(Path archive) throws IOException {
+        List<String> classPath = new ArrayList<>();
+        // absolute, so the launcher's class path matches the one the archive was dumped with
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            Path path = Paths.get(entry).toAbsolutePath().normalize();
+            // the JVM only archives classes loaded from jars
+            if (Files.isDirectory(path)) {
+                throw new IOException("Class path entry " + path + " is a directory, run from a jar: " +
+                        "java -cp JackAnalyzer.jar JackAnalyzer --train <classes.jsa>");
+            }
+            classPath.add(path.toString());
+        }
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-XX:ArchiveClassesAtExit=" + archive.toAbsolutePath(),
+                "-cp", String.join(File.pathSeparator, classPath), Training.class.getName())
+                .inheritIO()
+                .start();
+        try {
+            int exitCode = process.waitFor();
+            if (exitCode != 0) throw new IOException("Training run exited with " + exitCode);
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Training run interrupted", e);
+        }
+    }
+
+    // The training run
+    public static void main(String[] args) throws IOException {
+        Path directory = Files.createTempDirectory("jack-train");
+        try {
+            Files.writeString(directory.resolve("Main.jack"), MAIN);
+            Files.writeString(directory.resolve("Point.jack"), POINT);
+            JackAnalyzer.main(new String[]{directory.resolve("Main.jack").toString()});
+            JackAnalyzer.main(new String[]{directory.toString()});
+        } finally {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) Files.delete(path);
+            }
+        }
+    }
+}
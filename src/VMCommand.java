@@ -0,0 +1,121 @@
+import java.util.HashMap;
+import java.util.Map;
+
+public record VMCommand(Type type, VMWriter.SEGMENT segment, VMWriter.ARITHMETIC_COMMAND command,
+                        String name, int index) {
+
+    public enum Type {PUSH, POP, ARITHMETIC, LABEL, GOTO, IF, CALL, FUNCTION, RETURN}
+
+    private static final Map<String, VMWriter.SEGMENT> SEGMENT_NAMES = new HashMap<>();
+    static {
+        for (Map.Entry<VMWriter.SEGMENT, String> entry : VMWriter.SEGMENT_MAP.entrySet()) {
+            SEGMENT_NAMES.put(entry.getValue(), entry.getKey());
+        }
+    }
+
+    private static final Map<String, VMWriter.ARITHMETIC_COMMAND> ARITHMETIC_NAMES = new HashMap<>();
+    static {
+        for (Map.Entry<VMWriter.ARITHMETIC_COMMAND, String> entry : VMWriter.ARITHMETIC_COMMAND_MAP.entrySet()) {
+            ARITHMETIC_NAMES.put(entry.getValue(), entry.getKey());
+        }
+    }
+
+    public static VMCommand push(VMWriter.SEGMENT segment, int index) {
+        return new VMCommand(Type.PUSH, segment, null, null, index);
+    }
+
+    public static VMCommand pop(VMWriter.SEGMENT segment, int index) {
+        return new VMCommand(Type.POP, segment, null, null, index);
+    }
+
+    public static VMCommand arithmetic(VMWriter.ARITHMETIC_COMMAND command) {
+        return new VMCommand(Type.ARITHMETIC, null, command, null, 0);
+    }
+
+    public static VMCommand label(String label) {
+        return new VMCommand(Type.LABEL, null, null, label, 0);
+    }
+
+    public static VMCommand goTo(String label) {
+        return new VMCommand(Type.GOTO, null, null, label, 0);
+    }
+
+    public static VMCommand ifGoto(String label) {
+        return new VMCommand(Type.IF, null, null, label, 0);
+    }
+
+    public static VMCommand call(String function, int nArgs) {
+        return new VMCommand(Type.CALL, null, null, function, nArgs);
+    }
+
+    public static VMCommand function(String function, int nLocals) {
+        return new VMCommand(Type.FUNCTION, null, null, function, nLocals);
+    }
+
+    public static VMCommand ret() {
+        return new VMCommand(Type.RETURN, null, null, null, 0);
+    }
+
+    // Parses one line of VM code, returns null for blank and comment only lines
+    public static VMCommand parse(String line) {
+        int commentIndex = line.indexOf("//");
+        if (commentIndex != -1) line = line.substring(0, commentIndex);
+        line = line.trim();
+        if (line.isEmpty()) return null;
+
+        String[] parts = line.split("\\s+");
+        switch (parts[0]) {
+            case "push" -> {
+                return push(segmentOf(parts[1]), Integer.parseInt(parts[2]));
+            }
+            case "pop" -> {
+                return pop(segmentOf(parts[1]), Integer.parseInt(parts[2]));
+            }
+            case "label" -> {
+                return label(parts[1]);
+            }
+            case "goto" -> {
+                return goTo(parts[1]);
+            }
+            case "if-goto" -> {
+                return ifGoto(parts[1]);
+            }
+            case "call" -> {
+                return call(parts[1], Integer.parseInt(parts[2]));
+            }
+            case "function" -> {
+                return function(parts[1], Integer.parseInt(parts[2]));
+            }
+            case "return" -> {
+                return ret();
+            }
+            default -> {
+                VMWriter.ARITHMETIC_COMMAND command = ARITHMETIC_NAMES.get(parts[0]);
+                if (command == null) throw new IllegalArgumentException("Unknown VM command: " + line);
+                return arithmetic(command);
+            }
+        }
+    }
+
+    private static VMWriter.SEGMENT segmentOf(String name) {
+        VMWriter.SEGMENT segment = SEGMENT_NAMES.get(name);
+        if (segment == null) throw new IllegalArgumentException("Unknown segment: " + name);
+        return segment;
+    }
+
+    // Same text VMWriter writes, without the trailing new line
+    @Override
+    public String toString() {
+        return switch (type) {
+            case PUSH -> "\tpush " + VMWriter.SEGMENT_MAP.get(segment) + " " + index;
+            case POP -> "\tpop " + VMWriter.SEGMENT_MAP.get(segment) + " " + index;
+            case ARITHMETIC -> "\t" + VMWriter.ARITHMETIC_COMMAND_MAP.get(command);
+            case LABEL -> "label " + name;
+            case GOTO -> "\tgoto " + name;
+            case IF -> "\tif-goto " + name;
+            case CALL -> "\tcall " + name + " " + index;
+            case FUNCTION -> "function " + name + " " + index;
+            case RETURN -> "\treturn";
+        };
+    }
+}
@@ -0,0 +1,712 @@
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Runs the VM code written by VMWriter and profiles it.
+ * Memory layout and the calling convention follow the Nand2Tetris VM, the OS classes
+ * (Math, String, Array, Memory, Output, Screen, Keyboard, Sys) are stubbed in Java unless
+ * the loaded code defines them itself.
+ */
+public class VMInterpreter {
+    private static final int SP = 0, LCL = 1, ARG = 2, THIS = 3, THAT = 4, TEMP = 5;
+    private static final int STATIC_BASE = 16, STATIC_END = 256;
+    private static final int STACK_BASE = 256, STACK_END = 2048;
+    private static final int HEAP_BASE = 2048, HEAP_END = 16384;
+
+    // Opcodes of the linked program
+    private static final int PUSH_CONSTANT = 0, PUSH_BASED = 1, PUSH_FIXED = 2, POP_BASED = 3, POP_FIXED = 4,
+            ADD = 5, SUB = 6, NEG = 7, EQ = 8, GT = 9, LT = 10, AND = 11, OR = 12, NOT = 13,
+            LABEL = 14, GOTO = 15, IF = 16, CALL = 17, FUNCTION = 18, RETURN = 19;
+    private static final String[] OPCODE_NAMES = {"push constant", "push", "push", "pop", "pop",
+            "add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not",
+            "label", "goto", "if-goto", "call", "function", "return"};
+
+    private static final Set<String> BUILTINS = new HashSet<>(Arrays.asList(
+            "Math.init", "Math.abs", "Math.multiply", "Math.divide", "Math.min", "Math.max", "Math.sqrt",
+            "String.new", "String.dispose", "String.length", "String.charAt", "String.setCharAt",
+            "String.appendChar", "String.eraseLastChar", "String.intValue", "String.setInt",
+            "String.backSpace", "String.doubleQuote", "String.newLine",
+            "Array.new", "Array.dispose",
+            "Memory.init", "Memory.peek", "Memory.poke", "Memory.alloc", "Memory.deAlloc",
+            "Output.init", "Output.moveCursor", "Output.printChar", "Output.printString", "Output.printInt",
+            "Output.println", "Output.backSpace",
+            "Screen.init", "Screen.clearScreen", "Screen.setColor", "Screen.drawPixel", "Screen.drawLine",
+            "Screen.drawRectangle", "Screen.drawCircle",
+            "Keyboard.init", "Keyboard.keyPressed", "Keyboard.readChar", "Keyboard.readLine", "Keyboard.readInt",
+            "Sys.init", "Sys.halt", "Sys.error", "Sys.wait"));
+
+    private final List<VMCommand> commands = new ArrayList<>();
+    private final List<String> commandFunctions = new ArrayList<>();
+
+    // linked program
+    private int[] opcodes;
+    private int[] operands;
+    private int[] targets;
+    private int[] functionOf;
+    private final List<String> functionNames = new ArrayList<>();
+    private final Map<String, Integer> functionIds = new HashMap<>();
+    private int[] entryPoints;
+    private String[] labelNames;
+
+    private final short[] ram = new short[32768];
+    private int[] returnStack = new int[64];
+    private int returnDepth;
+    private int heapTop;
+    private final TreeMap<Integer, Integer> freeBlocks = new TreeMap<>();
+    private final StringBuilder output = new StringBuilder();
+    private Reader input = new StringReader("");
+    private boolean halted;
+
+    // profile
+    private long instructionCount;
+    private final long[] opcodeCounts = new long[OPCODE_NAMES.length];
+    private long[] callCounts;
+    private long[] selfInstructions;
+    private long[] backwardJumps;
+    // by command, for the profile the compiler reads
+    private long[] taken;
+    private long[] notTaken;
+
+    public void load(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(path, "*.{vm,vm.gz}")) {
+                for (Path file : directoryStream) {
+                    if (Files.isRegularFile(file)) files.add(file);
+                }
+            }
+            Collections.sort(files);
+            for (Path file : files) loadCode(Pipeline.readText(file));
+        } else {
+            loadCode(Pipeline.readText(path));
+        }
+    }
+
+    public void loadCode(String vmCode) {
+        String function = null;
+        for (String line : vmCode.split("\n")) {
+            VMCommand command = VMCommand.parse(line);
+            if (command == null) continue;
+            if (command.type() == VMCommand.Type.FUNCTION) {
+                function = command.name();
+            } else if (function == null) {
+                throw new IllegalArgumentException("VM command outside of a function: " + line.trim());
+            }
+            commands.add(command);
+            commandFunctions.add(function);
+        }
+    }
+
+    public void setInput(Reader input) {
+        this.input = input;
+    }
+
+    private int functionId(String name) {
+        Integer id = functionIds.get(name);
+        if (id == null) {
+            id = functionNames.size();
+            functionNames.add(name);
+            functionIds.put(name, id);
+        }
+        return id;
+    }
+
+    private void link() {
+        int size = commands.size();
+        opcodes = new int[size];
+        operands = new int[size];
+        targets = new int[size];
+        functionOf = new int[size];
+        labelNames = new String[size];
+
+        // function entry points, labels are scoped to their function
+        Map<String, Integer> entries = new HashMap<>();
+        Map<String, Integer> labels = new HashMap<>();
+        Map<String, Integer> staticBases = new HashMap<>();
+        Map<String, Integer> staticCounts = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            VMCommand command = commands.get(i);
+            String function = commandFunctions.get(i);
+            if (command.type() == VMCommand.Type.FUNCTION) {
+                if (entries.put(function, i) != null) {
+                    throw new IllegalArgumentException("Function defined twice: " + function);
+                }
+            } else if (command.type() == VMCommand.Type.LABEL) {
+                labels.put(function + "$" + command.name(), i);
+            } else if (command.segment() == VMWriter.SEGMENT.STATIC) {
+                // statics belong to the class, which is the prefix of the function name
+                String className = classOf(function);
+                staticCounts.merge(className, command.index() + 1, Math::max);
+            }
+        }
+        int nextStatic = STATIC_BASE;
+        for (Map.Entry<String, Integer> entry : new TreeMap<>(staticCounts).entrySet()) {
+            staticBases.put(entry.getKey(), nextStatic);
+            nextStatic += entry.getValue();
+        }
+        if (nextStatic > STATIC_END) throw new IllegalArgumentException("Too many static variables");
+
+        for (int i = 0; i < size; i++) {
+            VMCommand command = commands.get(i);
+            String function = commandFunctions.get(i);
+            functionOf[i] = functionId(function);
+            switch (command.type()) {
+                case PUSH, POP -> {
+                    boolean push = command.type() == VMCommand.Type.PUSH;
+                    int index = command.index();
+                    switch (command.segment()) {
+                        case CONSTANT -> {
+                            if (!push) throw new IllegalArgumentException("Cannot pop to constant in " + function);
+                            opcodes[i] = PUSH_CONSTANT;
+                            operands[i] = index;
+                        }
+                        case LOCAL, ARGUMENT, THIS, THAT -> {
+                            opcodes[i] = push ? PUSH_BASED : POP_BASED;
+                            operands[i] = index;
+                            targets[i] = switch (command.segment()) {
+                                case LOCAL -> LCL;
+                                case ARGUMENT -> ARG;
+                                case THIS -> THIS;
+                                default -> THAT;
+                            };
+                        }
+                        case POINTER, TEMP, STATIC -> {
+                            opcodes[i] = push ? PUSH_FIXED : POP_FIXED;
+                            if (command.segment() == VMWriter.SEGMENT.POINTER) {
+                                operands[i] = THIS + index;
+                            } else if (command.segment() == VMWriter.SEGMENT.TEMP) {
+                                operands[i] = TEMP + index;
+                            } else {
+                                operands[i] = staticBases.get(classOf(function)) + index;
+                            }
+                        }
+                    }
+                }
+                case ARITHMETIC -> opcodes[i] = switch (command.command()) {
+                    case ADD -> ADD;
+                    case SUB -> SUB;
+                    case NEG -> NEG;
+                    case EQ -> EQ;
+                    case GT -> GT;
+                    case LT -> LT;
+                    case AND -> AND;
+                    case OR -> OR;
+                    case NOT -> NOT;
+                };
+                case LABEL -> {
+                    opcodes[i] = LABEL;
+                    labelNames[i] = function + "$" + command.name();
+                }
+                case GOTO, IF -> {
+                    opcodes[i] = command.type() == VMCommand.Type.GOTO ? GOTO : IF;
+                    Integer target = labels.get(function + "$" + command.name());
+                    if (target == null) {
+                        throw new IllegalArgumentException("Undefined label " + command.name() + " in " + function);
+                    }
+                    targets[i] = target;
+                }
+                case CALL -> {
+                    opcodes[i] = CALL;
+                    operands[i] = command.index();
+                    targets[i] = functionId(command.name());
+                }
+                case FUNCTION -> {
+                    opcodes[i] = FUNCTION;
+                    operands[i] = command.index();
+                }
+                case RETURN -> opcodes[i] = RETURN;
+            }
+        }
+
+        entryPoints = new int[functionNames.size()];
+        for (int id = 0; id < entryPoints.length; id++) {
+            entryPoints[id] = entries.getOrDefault(functionNames.get(id), -1);
+        }
+        callCounts = new long[functionNames.size()];
+        selfInstructions = new long[functionNames.size()];
+        backwardJumps = new long[size];
+        taken = new long[size];
+        notTaken = new long[size];
+    }
+
+    private static String classOf(String function) {
+        int dot = function.indexOf('.');
+        return dot == -1 ? function : function.substring(0, dot);
+    }
+
+    /**
+     * Runs from Sys.init, or from Main.main when Sys.init is not part of the loaded code.
+     * Returns false if maxSteps instructions were executed before the program halted.
+     */
+    public boolean run(long maxSteps) {
+        link();
+        ram[SP] = STACK_BASE;
+        heapTop = HEAP_BASE;
+        String entry = functionIds.containsKey("Sys.init") && entryPoints[functionIds.get("Sys.init")] != -1
+                ? "Sys.init" : "Main.main";
+        Integer entryId = functionIds.get(entry);
+        if (entryId == null || entryPoints[entryId] == -1) {
+            throw new IllegalStateException("No Sys.init or Main.main to run");
+        }
+        returnDepth = 0;
+        callCounts[entryId]++;
+        int pc = enterFunction(-1, entryId, 0);
+        return execute(pc, maxSteps);
+    }
+
+    private int enterFunction(int returnAddress, int function, int nArgs) {
+        if (returnDepth == returnStack.length) returnStack = Arrays.copyOf(returnStack, returnDepth * 2);
+        returnStack[returnDepth++] = returnAddress;
+        // the return address lives outside of RAM, a placeholder keeps the frame layout
+        push(0);
+        push(ram[LCL]);
+        push(ram[ARG]);
+        push(ram[THIS]);
+        push(ram[THAT]);
+        ram[ARG] = (short) (ram[SP] - nArgs - 5);
+        ram[LCL] = ram[SP];
+        return entryPoints[function];
+    }
+
+    private boolean execute(int pc, long maxSteps) {
+        long steps = 0;
+        while (!halted) {
+            int opcode = opcodes[pc];
+            if (opcode == LABEL) {
+                // labels don't cost anything once translated
+                pc++;
+                continue;
+            }
+            if (steps++ == maxSteps) return false;
+            opcodeCounts[opcode]++;
+            selfInstructions[functionOf[pc]]++;
+            switch (opcode) {
+                case PUSH_CONSTANT -> {
+                    push(operands[pc]);
+                    pc++;
+                }
+                case PUSH_BASED -> {
+                    push(ram[address(ram[targets[pc]] + operands[pc])]);
+                    pc++;
+                }
+                case PUSH_FIXED -> {
+                    push(ram[operands[pc]]);
+                    pc++;
+                }
+                case POP_BASED -> {
+                    int address = address(ram[targets[pc]] + operands[pc]);
+                    ram[address] = (short) pop();
+                    pc++;
+                }
+                case POP_FIXED -> {
+                    ram[operands[pc]] = (short) pop();
+                    pc++;
+                }
+                case ADD, SUB, EQ, GT, LT, AND, OR -> {
+                    int y = pop();
+                    int x = pop();
+                    push(switch (opcode) {
+                        case ADD -> x + y;
+                        case SUB -> x - y;
+                        case EQ -> x == y ? -1 : 0;
+                        case GT -> x > y ? -1 : 0;
+                        case LT -> x < y ? -1 : 0;
+                        case AND -> x & y;
+                        default -> x | y;
+                    });
+                    pc++;
+                }
+                case NEG -> {
+                    push(-pop());
+                    pc++;
+                }
+                case NOT -> {
+                    push(~pop());
+                    pc++;
+                }
+                case GOTO -> {
+                    if (targets[pc] <= pc) backwardJumps[pc]++;
+                    taken[pc]++;
+                    pc = targets[pc];
+                }
+                case IF -> {
+                    if (pop() != 0) {
+                        if (targets[pc] <= pc) backwardJumps[pc]++;
+                        taken[pc]++;
+                        pc = targets[pc];
+                    } else {
+                        notTaken[pc]++;
+                        pc++;
+                    }
+                }
+                case CALL -> {
+                    int function = targets[pc];
+                    int nArgs = operands[pc];
+                    callCounts[function]++;
+                    taken[pc]++;
+                    if (entryPoints[function] != -1) {
+                        pc = enterFunction(pc + 1, function, nArgs);
+                    } else {
+                        callBuiltin(functionNames.get(function), nArgs);
+                        pc++;
+                    }
+                }
+                case FUNCTION -> {
+                    for (int i = 0; i < operands[pc]; i++) push(0);
+                    pc++;
+                }
+                case RETURN -> {
+                    int frame = ram[LCL];
+                    ram[address(ram[ARG])] = (short) pop();
+                    ram[SP] = (short) (ram[ARG] + 1);
+                    ram[THAT] = ram[frame - 1];
+                    ram[THIS] = ram[frame - 2];
+                    ram[ARG] = ram[frame - 3];
+                    ram[LCL] = ram[frame - 4];
+                    pc = returnStack[--returnDepth];
+                    if (pc == -1) halted = true;
+                }
+            }
+            instructionCount++;
+        }
+        return true;
+    }
+
+    private static int address(int address) {
+        return address & 0x7FFF;
+    }
+
+    private void push(int value) {
+        int sp = ram[SP];
+        if (sp >= STACK_END) throw new IllegalStateException("Stack overflow");
+        ram[sp] = (short) value;
+        ram[SP] = (short) (sp + 1);
+    }
+
+    private int pop() {
+        int sp = ram[SP] - 1;
+        ram[SP] = (short) sp;
+        return ram[sp];
+    }
+
+    private void callBuiltin(String name, int nArgs) {
+        if (!BUILTINS.contains(name)) throw new IllegalStateException("Undefined function " + name);
+        int[] args = new int[nArgs];
+        for (int i = nArgs - 1; i >= 0; i--) args[i] = pop();
+        push(builtin(name, args));
+    }
+
+    private int builtin(String name, int[] args) {
+        switch (name) {
+            case "Math.abs" -> {
+                return Math.abs(args[0]);
+            }
+            case "Math.multiply" -> {
+                return args[0] * args[1];
+            }
+            case "Math.divide" -> {
+                if (args[1] == 0) return error(3);
+                return args[0] / args[1];
+            }
+            case "Math.min" -> {
+                return Math.min(args[0], args[1]);
+            }
+            case "Math.max" -> {
+                return Math.max(args[0], args[1]);
+            }
+            case "Math.sqrt" -> {
+                if (args[0] < 0) return error(4);
+                return (int) Math.sqrt(args[0]);
+            }
+            case "String.new" -> {
+                if (args[0] < 0) return error(14);
+                // [maxLength, length, chars...]
+                int string = alloc(args[0] + 2);
+                ram[string] = (short) args[0];
+                ram[string + 1] = 0;
+                return string;
+            }
+            case "String.length" -> {
+                return ram[args[0] + 1];
+            }
+            case "String.charAt" -> {
+                return ram[args[0] + 2 + args[1]];
+            }
+            case "String.setCharAt" -> {
+                ram[args[0] + 2 + args[1]] = (short) args[2];
+                return 0;
+            }
+            case "String.appendChar" -> {
+                int string = args[0];
+                if (ram[string + 1] >= ram[string]) return error(17);
+                ram[string + 2 + ram[string + 1]] = (short) args[1];
+                ram[string + 1]++;
+                return string;
+            }
+            case "String.eraseLastChar" -> {
+                if (ram[args[0] + 1] > 0) ram[args[0] + 1]--;
+                return 0;
+            }
+            case "String.intValue" -> {
+                String value = javaString(args[0]);
+                int end = value.startsWith("-") ? 1 : 0;
+                while (end < value.length() && Character.isDigit(value.charAt(end))) end++;
+                String digits = value.substring(0, end);
+                return digits.isEmpty() || digits.equals("-") ? 0 : (short) Integer.parseInt(digits);
+            }
+            case "String.setInt" -> {
+                String value = Integer.toString(args[1]);
+                int string = args[0];
+                if (value.length() > ram[string]) return error(19);
+                for (int i = 0; i < value.length(); i++) ram[string + 2 + i] = (short) value.charAt(i);
+                ram[string + 1] = (short) value.length();
+                return 0;
+            }
+            case "String.backSpace" -> {
+                return 129;
+            }
+            case "String.doubleQuote" -> {
+                return 34;
+            }
+            case "String.newLine" -> {
+                return 128;
+            }
+            case "Array.new", "Memory.alloc" -> {
+                return alloc(args[0]);
+            }
+            case "String.dispose", "Array.dispose", "Memory.deAlloc" -> {
+                freeBlocks.put(args[0], (int) ram[args[0] - 1]);
+                return 0;
+            }
+            case "Memory.peek" -> {
+                return ram[address(args[0])];
+            }
+            case "Memory.poke" -> {
+                ram[address(args[0])] = (short) args[1];
+                return 0;
+            }
+            case "Output.printChar" -> {
+                printChar(args[0]);
+                return 0;
+            }
+            case "Output.printString" -> {
+                int string = args[0];
+                for (int i = 0; i < ram[string + 1]; i++) printChar(ram[string + 2 + i]);
+                return 0;
+            }
+            case "Output.printInt" -> {
+                output.append(args[0]);
+                return 0;
+            }
+            case "Output.println" -> {
+                output.append('\n');
+                return 0;
+            }
+            case "Output.backSpace" -> {
+                printChar(129);
+                return 0;
+            }
+            case "Keyboard.readChar" -> {
+                return readChar();
+            }
+            case "Keyboard.readLine", "Keyboard.readInt" -> {
+                printString(args[0]);
+                StringBuilder line = new StringBuilder();
+                for (int c = readChar(); c != 128 && c != 0; c = readChar()) line.append((char) c);
+                if (name.equals("Keyboard.readInt")) {
+                    try {
+                        return (short) Integer.parseInt(line.toString().trim());
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+                int string = alloc(line.length() + 2);
+                ram[string] = (short) line.length();
+                ram[string + 1] = (short) line.length();
+                for (int i = 0; i < line.length(); i++) ram[string + 2 + i] = (short) line.charAt(i);
+                return string;
+            }
+            case "Sys.halt" -> {
+                halted = true;
+                return 0;
+            }
+            case "Sys.error" -> {
+                return error(args[0]);
+            }
+            default -> {
+                // init functions, Screen drawing, Keyboard.keyPressed, Output.moveCursor and Sys.wait do nothing
+                return 0;
+            }
+        }
+    }
+
+    private int error(int code) {
+        output.append("ERR").append(code);
+        halted = true;
+        return 0;
+    }
+
+    private int alloc(int size) {
+        if (size < 0) return error(5);
+        size = Math.max(size, 1);
+        for (Map.Entry<Integer, Integer> block : freeBlocks.entrySet()) {
+            if (block.getValue() >= size) {
+                freeBlocks.remove(block.getKey());
+                return block.getKey();
+            }
+        }
+        // one word before each block holds its size
+        int block = heapTop + 1;
+        if (block + size > HEAP_END) return error(6);
+        ram[heapTop] = (short) size;
+        heapTop += size + 1;
+        return block;
+    }
+
+    private void printChar(int c) {
+        if (c == 128) {
+            output.append('\n');
+        } else if (c == 129) {
+            if (output.length() > 0) output.setLength(output.length() - 1);
+        } else {
+            output.append((char) c);
+        }
+    }
+
+    private void printString(int string) {
+        if (string == 0) return;
+        for (int i = 0; i < ram[string + 1]; i++) printChar(ram[string + 2 + i]);
+    }
+
+    private String javaString(int string) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ram[string + 1]; i++) sb.append((char) ram[string + 2 + i]);
+        return sb.toString();
+    }
+
+    private int readChar() {
+        try {
+            int c = input.read();
+            if (c == -1) return 0;
+            return c == '\n' ? 128 : c;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public String output() {
+        return output.toString();
+    }
+
+    public long instructionCount() {
+        return instructionCount;
+    }
+
+    public long callCount(String function) {
+        Integer id = functionIds.get(function);
+        return id == null ? 0 : callCounts[id];
+    }
+
+    /**
+     * Counts of the run for compiling with a profile: calls of each function and from each function to
+     * another, and jumps to each label. Builtins aren't in the profile.
+     */
+    public Profile profile() {
+        Profile profile = new Profile();
+        for (int id = 0; id < functionNames.size(); id++) {
+            if (entryPoints[id] != -1 && callCounts[id] > 0) profile.addFunction(functionNames.get(id), callCounts[id]);
+        }
+        for (int pc = 0; pc < opcodes.length; pc++) {
+            String function = functionNames.get(functionOf[pc]);
+            if (opcodes[pc] == CALL && taken[pc] > 0 && entryPoints[targets[pc]] != -1) {
+                profile.addCall(function, functionNames.get(targets[pc]), taken[pc]);
+            } else if (opcodes[pc] == IF && taken[pc] + notTaken[pc] > 0) {
+                profile.addBranch(function, commands.get(pc).name(), taken[pc], notTaken[pc]);
+            } else if (opcodes[pc] == GOTO && taken[pc] > 0) {
+                profile.addJump(function, commands.get(pc).name(), taken[pc]);
+            }
+        }
+        return profile;
+    }
+
+    public void report(PrintStream out, int top) {
+        out.println("Instructions executed: " + instructionCount);
+        long calls = 0;
+        for (long count : callCounts) calls += count;
+        out.println("Function calls: " + calls);
+
+        out.println();
+        out.println("Instruction mix:");
+        Map<String, Long> mix = new TreeMap<>();
+        for (int i = 0; i < opcodeCounts.length; i++) {
+            if (opcodeCounts[i] > 0) mix.merge(OPCODE_NAMES[i], opcodeCounts[i], Long::sum);
+        }
+        mix.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .forEach(e -> out.printf("  %-16s %12d%n", e.getKey(), e.getValue()));
+
+        out.println();
+        out.println("Functions by calls:");
+        out.printf("  %-40s %12s %14s%n", "function", "calls", "instructions");
+        Integer[] ids = new Integer[functionNames.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = i;
+        Arrays.sort(ids, (a, b) -> Long.compare(callCounts[b], callCounts[a]));
+        for (int i = 0; i < Math.min(top, ids.length) && callCounts[ids[i]] > 0; i++) {
+            int id = ids[i];
+            String name = functionNames.get(id) + (entryPoints[id] == -1 ? " (builtin)" : "");
+            out.printf("  %-40s %12d %14d%n", name, callCounts[id], selfInstructions[id]);
+        }
+
+        out.println();
+        out.println("Hot loops:");
+        Map<String, Long> loops = new HashMap<>();
+        for (int pc = 0; pc < backwardJumps.length; pc++) {
+            if (backwardJumps[pc] > 0) loops.merge(labelNames[targets[pc]], backwardJumps[pc], Long::sum);
+        }
+        loops.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(top)
+                .forEach(e -> out.printf("  %-40s %12d iterations%n", e.getKey(), e.getValue()));
+    }
+
+    public static void main(String[] args) throws IOException {
+        long maxSteps = 100_000_000L;
+        int top = 20;
+        String profile = null;
+        String path = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--max-steps") && i + 1 < args.length) {
+                maxSteps = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--top") && i + 1 < args.length) {
+                top = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--profile") && i + 1 < args.length) {
+                profile = args[++i];
+            } else {
+                path = args[i];
+            }
+        }
+        if (path == null) {
+            System.out.println("Usage: java VMInterpreter [--max-steps n] [--top n] [--profile <out.profile>] " +
+                    "<file.vm or directory>");
+            return;
+        }
+
+        VMInterpreter interpreter = new VMInterpreter();
+        interpreter.load(Paths.get(path));
+        interpreter.setInput(new InputStreamReader(System.in));
+        boolean finished = interpreter.run(maxSteps);
+        System.out.print(interpreter.output());
+        System.out.flush();
+        if (!finished) System.err.println("Stopped after " + maxSteps + " steps");
+        interpreter.report(System.err, top);
+        if (profile != null) interpreter.profile().save(Paths.get(profile));
+    }
+}
@@ -1,6 +1,8 @@
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class VMWriter {
@@ -39,45 +41,112 @@ public class VMWriter {
         ARITHMETIC_COMMAND_MAP.put(ARITHMETIC_COMMAND.OR, "or");
         ARITHMETIC_COMMAND_MAP.put(ARITHMETIC_COMMAND.NOT, "not");
     }
-    private final FileWriter output;
+    private Writer output;
+    // commands of the function being written, kept until the function is complete
+    private final List<VMCommand> commands = new ArrayList<>();
+    // label to put right after the function command, written last so marks stay where they are
+    private String entryLabel;
 
-    public VMWriter(FileWriter output) {
+    public VMWriter(Writer output) {
         this.output = output;
     }
 
-    void writePush(SEGMENT segment, int index) throws IOException {
-        output.write("\tpush " + SEGMENT_MAP.get(segment) + " " + index + "\n");
+    // Writes to another output from now on, keeping the capacity of the command buffer
+    void reset(Writer output) {
+        this.output = output;
+        commands.clear();
+        entryLabel = null;
+    }
+
+    void writePush(SEGMENT segment, int index) {
+        commands.add(VMCommand.push(segment, index));
     }
 
-    void writePop(SEGMENT segment, int index) throws IOException {
-        output.write("\tpop " + SEGMENT_MAP.get(segment) + " " + index + "\n");
+    void writePop(SEGMENT segment, int index) {
+        commands.add(VMCommand.pop(segment, index));
     }
 
-    void writeArithmetic(ARITHMETIC_COMMAND command) throws IOException {
-        output.write("\t" + ARITHMETIC_COMMAND_MAP.get(command) + "\n");
+    void writeArithmetic(ARITHMETIC_COMMAND command) {
+        commands.add(VMCommand.arithmetic(command));
     }
 
-    void writeLabel(String label) throws IOException {
-        output.write("label " + label + "\n");
+    void writeLabel(String label) {
+        commands.add(VMCommand.label(label));
     }
 
-    void writeGoto(String label) throws IOException {
-        output.write("\tgoto " + label + "\n");
+    void writeGoto(String label) {
+        commands.add(VMCommand.goTo(label));
     }
-    void writeIf(String label) throws IOException {
-        output.write("\tif-goto " + label + "\n");
+    void writeIf(String label) {
+        commands.add(VMCommand.ifGoto(label));
     }
-    void writeCall(String label, int nArgs) throws IOException {
-        output.write("\tcall " + label + " " + nArgs + "\n");
+    void writeCall(String label, int nArgs) {
+        commands.add(VMCommand.call(label, nArgs));
     }
     void writeFunction(String label, int nArgs) throws IOException {
-        output.write("function " + label + " " + nArgs + "\n");
+        flush();
+        commands.add(VMCommand.function(label, nArgs));
+    }
+    void writeReturn() {
+        commands.add(VMCommand.ret());
+    }
+
+    void writeCommands(List<VMCommand> fragment) {
+        commands.addAll(fragment);
+    }
+
+    // Puts label at the start of the function being written, before the method or constructor setup
+    void writeEntryLabel(String label) {
+        entryLabel = label;
+    }
+
+    // Adds a local to the function being written and returns its index
+    int newLocal() {
+        VMCommand function = commands.get(0);
+        commands.set(0, VMCommand.function(function.name(), function.index() + 1));
+        return function.index();
     }
-    void writeReturn() throws IOException {
-        output.write("\treturn\n");
+
+    // Position to later cut the commands written after it
+    int mark() {
+        return commands.size();
+    }
+
+    // Removes and returns the commands written since mark, so they can be written again in a different order
+    List<VMCommand> cut(int mark) {
+        List<VMCommand> tail = commands.subList(mark, commands.size());
+        List<VMCommand> fragment = new ArrayList<>(tail);
+        tail.clear();
+        return fragment;
+    }
+
+    // Writes the function being written, and returns the code written for it
+    String endFunction() throws IOException {
+        if (entryLabel != null) {
+            commands.add(1, VMCommand.label(entryLabel));
+            entryLabel = null;
+        }
+        StringBuilder code = new StringBuilder();
+        for (VMCommand command : LocalSlots.pack(CommonSubexpressions.eliminate(ConstantPropagation.propagate(commands)))) {
+            code.append(command).append('\n');
+        }
+        commands.clear();
+        output.write(code.toString());
+        return code.toString();
+    }
+
+    // Writes the code of a whole function compiled before
+    void writeCompiled(String code) throws IOException {
+        flush();
+        output.write(code);
+    }
+
+    private void flush() throws IOException {
+        if (!commands.isEmpty()) endFunction();
     }
 
     void close() throws IOException {
+        flush();
         this.output.close();
     }
 }
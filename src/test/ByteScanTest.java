@@ -0,0 +1,31 @@
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class ByteScanTest {
+    @Test
+    public void matchesByteAtATime() {
+        // every start in buffers mixing the bytes the scans look for, UTF-8 bytes included
+        byte[] alphabet = {' ', '\n', '\t', '\r', '*', '/', 'a', (byte) 0xC3, (byte) 0xA9};
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            byte[] text = new byte[random.nextInt(40)];
+            for (int i = 0; i < text.length; i++) text[i] = alphabet[random.nextInt(alphabet.length)];
+            for (int start = 0; start < text.length; start++) {
+                int whitespace = start;
+                while (whitespace < text.length && ByteScan.isWhitespace(text[whitespace])) whitespace++;
+                Assert.assertEquals("whitespace", whitespace, ByteScan.skipWhitespace(text, start, text.length));
+
+                int line = start;
+                while (line < text.length && text[line] != '\n') line++;
+                Assert.assertEquals("line", line, ByteScan.lineEnd(text, start, text.length));
+
+                int comment = start + 1;
+                while (comment < text.length && !(text[comment - 1] == '*' && text[comment] == '/')) comment++;
+                Assert.assertEquals("comment", Math.min(comment + 1, text.length),
+                        ByteScan.commentEnd(text, start, text.length));
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CompilationEngineTest {
+    private static String compile(String filename) throws IOException {
+        return compile(filename, null);
+    }
+
+    private static String compile(String filename, Profile profile) throws IOException {
+        Tokenizer tokenizer = new Tokenizer(filename);
+        tokenizer.advance();
+        StringWriter output = new StringWriter();
+        CompilationEngine compilationEngine = new CompilationEngine(tokenizer, output);
+        compilationEngine.setClassIndex(ClassIndex.build(List.of(filename)));
+        compilationEngine.setProfile(profile);
+        compilationEngine.compileClass();
+        return output.toString();
+    }
+
+    private static String run(String vmCode) {
+        VMInterpreter interpreter = new VMInterpreter();
+        interpreter.loadCode(vmCode);
+        Assert.assertTrue("finished", interpreter.run(1_000_000));
+        return interpreter.output();
+    }
+
+    @Test
+    public void reset() throws IOException {
+        // one engine compiling two files in turn writes what two new engines do
+        String first = "src/test/resources/jack/Calls.jack", second = "src/test/resources/jack/Branches.jack";
+        Tokenizer tokenizer = new Tokenizer(first);
+        tokenizer.advance();
+        StringWriter output = new StringWriter();
+        CompilationEngine compilationEngine = new CompilationEngine(tokenizer, output);
+        compilationEngine.setClassIndex(ClassIndex.build(List.of(first)));
+        compilationEngine.compileClass();
+        Assert.assertEquals("first", compile(first), output.toString());
+
+        tokenizer.reset(new FileReader(second));
+        tokenizer.advance();
+        output = new StringWriter();
+        compilationEngine.reset(tokenizer, output);
+        compilationEngine.setClassIndex(ClassIndex.build(List.of(second)));
+        compilationEngine.compileClass();
+        Assert.assertEquals("second", compile(second), output.toString());
+    }
+
+    @Test
+    public void arrayStores() throws IOException {
+        String vmCode = compile("src/test/resources/jack/ArrayStore.jack");
+        // the index of log[next] is read before Main.record changes next
+        Assert.assertEquals("output", "01256", run(vmCode));
+        // only the stores with a call on the right side park it in temp 0
+        Assert.assertEquals("temp shuffles", 2, vmCode.split("pop temp 0\n\tpop pointer 1").length - 1);
+        // constant indexes are folded into the THAT offset
+        Assert.assertTrue("constant index", vmCode.contains("\tpop pointer 1\n\tpush that 3\n"));
+    }
+
+    @Test
+    public void branches() throws IOException {
+        String vmCode = compile("src/test/resources/jack/Branches.jack");
+        Assert.assertEquals("output", "9000102114810", run(vmCode));
+        // every condition here can be inverted without a not
+        Assert.assertFalse("not", vmCode.contains("\tnot\n"));
+        // constant conditions leave out the branch that can't run
+        Assert.assertFalse("dead code", vmCode.contains("push constant 7\n") | vmCode.contains("push constant 6\n"));
+    }
+
+    @Test
+    public void calls() throws IOException {
+        String vmCode = compile("src/test/resources/jack/Calls.jack");
+        // Total is a variable even though it starts with a capital, twice is a function
+        Assert.assertEquals("output", "14", run(vmCode));
+        Assert.assertTrue("function", vmCode.contains("\tcall Main.twice 1\n"));
+        Assert.assertTrue("method", vmCode.contains("\tpush local 0\n\tcall Main.get 1\n"));
+        // THIS comes back from the call, so it isn't saved around it
+        Assert.assertFalse("saved this", vmCode.contains("\tpop temp 0\n\tpop pointer 0\n"));
+    }
+
+    @Test
+    public void conditions() throws IOException {
+        String filename = "src/test/resources/jack/Conditions.jack";
+        String vmCode = compile(filename);
+        Assert.assertEquals("output", "3313", run(vmCode));
+        // whichever layout the profile picks
+        VMInterpreter profiled = new VMInterpreter();
+        profiled.loadCode(vmCode);
+        Assert.assertTrue("finished", profiled.run(1_000_000));
+        Assert.assertEquals("profiled", "3313", run(compile(filename, profiled.profile())));
+    }
+
+    @Test
+    public void subexpressions() throws IOException {
+        String vmCode = compile("src/test/resources/jack/Subexpressions.jack");
+        Assert.assertEquals("output", "1025228", run(vmCode));
+        // x * y is computed again only after x changes
+        Assert.assertEquals("multiplies", 2, vmCode.split("call Math.multiply").length - 1);
+        // a and i don't change, so the address of a[i] is computed once, even across the stores
+        Assert.assertEquals("addresses", 1, vmCode.split("push local 0\n\tpush argument 2\n\tadd\n").length - 1);
+    }
+
+    @Test
+    public void loopInvariants() throws IOException {
+        String vmCode = compile("src/test/resources/jack/Loops.jack");
+        Assert.assertEquals("output", "7866699", run(vmCode));
+        // n * width is computed before each loop, a[1] only before the first, which has no stores or calls
+        Assert.assertEquals("multiplies", 2, vmCode.split("call Math.multiply").length - 1);
+        Assert.assertEquals("array reads", 2, vmCode.split("push that 1").length - 1);
+    }
+
+    @Test
+    public void tailCalls() throws IOException {
+        String vmCode = compile("src/test/resources/jack/TailCalls.jack");
+        VMInterpreter interpreter = new VMInterpreter();
+        interpreter.loadCode(vmCode);
+        Assert.assertTrue("finished", interpreter.run(1_000_000));
+        Assert.assertEquals("output", "20100500", interpreter.output());
+        // each recursion is a jump back to the start, so only the first call is made
+        Assert.assertEquals("sum calls", 1, interpreter.callCount("Main.sum"));
+        Assert.assertEquals("countDown calls", 1, interpreter.callCount("Main.countDown"));
+    }
+
+    @Test
+    public void locals() throws IOException {
+        String vmCode = compile("src/test/resources/jack/Locals.jack");
+        Assert.assertEquals("output", "1616", run(vmCode));
+        // unused is never read and a is dead once total is set, so two slots are enough
+        Assert.assertTrue("frame", vmCode.contains("function Main.run 2\n"));
+        // the call is kept for what it prints
+        Assert.assertTrue("call", vmCode.contains("\tcall Main.twice 1\n\tpop temp 0\n"));
+        Assert.assertFalse("dead store", vmCode.contains("push constant 7"));
+    }
+
+    @Test
+    public void constants() throws IOException {
+        String vmCode = compile("src/test/resources/jack/Constants.jack");
+        Assert.assertEquals("output", "512024-3210121212", run(vmCode));
+        // w * h is known, so is the branch on it
+        Assert.assertTrue("folded", vmCode.contains("\tpush constant 512\n"));
+        Assert.assertFalse("multiply", vmCode.contains("Math.multiply"));
+        Assert.assertFalse("else", vmCode.contains("push constant 0\n\tcall Output.printInt"));
+        // only i is left in a local, copy is read as i
+        Assert.assertTrue("frame", vmCode.contains("function Main.main 1\n"));
+    }
+
+    @Test
+    public void profile() throws IOException {
+        String filename = "src/test/resources/jack/Profiled.jack";
+        VMInterpreter profiled = new VMInterpreter();
+        profiled.loadCode(compile(filename));
+        Assert.assertTrue("finished", profiled.run(1_000_000));
+
+        String vmCode = compile(filename, profiled.profile());
+        VMInterpreter interpreter = new VMInterpreter();
+        interpreter.loadCode(vmCode);
+        Assert.assertTrue("finished", interpreter.run(1_000_000));
+        Assert.assertEquals("output", profiled.output(), interpreter.output());
+        // the string printed in the loop is built once
+        Assert.assertEquals("pooled", 1, interpreter.callCount("String.new"));
+        // the hot then statements are jumped to, the inner loop that rarely runs tests at the top
+        Assert.assertTrue("then last", vmCode.contains("\tpush constant 3\n\tgt\n\tif-goto L3\n"));
+        Assert.assertTrue("test at top", vmCode.contains("label L4\n\tpush local 2\n\tpush constant 1\n\tlt\n"));
+        Assert.assertTrue("fewer instructions", interpreter.instructionCount() < profiled.instructionCount());
+    }
+
+    @Test
+    public void prologue() throws IOException {
+        String vmCode = compile("src/test/resources/jack/Prologue.jack");
+        Assert.assertEquals("output", "24", run(vmCode));
+        // double never uses this, quad passes it on
+        Assert.assertTrue("double", vmCode.contains("function Main.double 0\n\tpush argument 1\n"));
+        Assert.assertTrue("quad", vmCode.contains("function Main.quad 0\n\tpush argument 0\n\tpop pointer 0\n"));
+        // returning this keeps the object even without fields
+        Assert.assertTrue("new", vmCode.contains("\tcall Memory.alloc 1\n"));
+    }
+
+    private static String compileSource(String source, SubroutineCache cache) throws IOException {
+        Tokenizer tokenizer = new Tokenizer(new StringReader(source));
+        tokenizer.advance();
+        StringWriter output = new StringWriter();
+        CompilationEngine compilationEngine = new CompilationEngine(tokenizer, output);
+        compilationEngine.setCache(cache);
+        compilationEngine.compileClass();
+        return output.toString();
+    }
+
+    @Test
+    public void unicode() throws IOException {
+        // the source is longer as UTF-8 than as chars, and ends right after the closing }
+        String source = Files.readString(Path.of("src/test/resources/jack/Unicode.jack"));
+        Assert.assertEquals("output", "cr\u00e8me br\u00fbl\u00e9e", run(compileSource(source, null)));
+        Assert.assertEquals("trimmed", "cr\u00e8me br\u00fbl\u00e9e", run(compileSource(source.strip(), null)));
+    }
+
+    @Test
+    public void cache() throws IOException {
+        String source = Files.readString(Path.of("src/test/resources/jack/TailCalls.jack"));
+        SubroutineCache cache = new SubroutineCache();
+        String vmCode = compileSource(source, cache);
+        Assert.assertEquals("first", 0, cache.hits());
+        Assert.assertEquals("again", vmCode, compileSource(source, cache));
+        Assert.assertEquals("all cached", 4, cache.hits());
+
+        // countDown gets a branch, the labels of sum after it stay the same
+        String edited = source.replace("let count = count + 1;", "if (n > 0) { let count = count + 1; }");
+        Assert.assertEquals("edited", compileSource(edited, null), compileSource(edited, cache));
+        Assert.assertEquals("one compiled", 7, cache.hits());
+    }
+
+    @Test
+    public void stackDepth() throws IOException {
+        String vmCode = compile("src/test/resources/jack/Deep.jack");
+        Assert.assertEquals("output", "15", run(vmCode));
+        List<VMCommand> commands = new ArrayList<>();
+        for (String line : vmCode.split("\n")) {
+            VMCommand command = VMCommand.parse(line);
+            if (command != null) commands.add(command);
+        }
+        // left to right would hold a, b, c, d and e under a - b
+        Assert.assertEquals("depth", 2, (int) StackDepth.ofFunctions(commands).get("Main.run"));
+    }
+}
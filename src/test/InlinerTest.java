@@ -0,0 +1,95 @@
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class InlinerTest {
+    private static List<VMCommand> parse(String... lines) {
+        List<VMCommand> commands = new ArrayList<>();
+        for (String line : lines) commands.add(VMCommand.parse(line));
+        return commands;
+    }
+
+    private static String text(List<VMCommand> commands) {
+        StringBuilder sb = new StringBuilder();
+        for (VMCommand command : commands) sb.append(command).append("\n");
+        return sb.toString();
+    }
+
+    private static final String[] BOX = {
+            "function Box.new 0",
+            "push constant 1",
+            "call Memory.alloc 1",
+            "pop pointer 0",
+            "push argument 0",
+            "pop this 0",
+            "push pointer 0",
+            "return",
+            "function Box.get 0",
+            "push argument 0",
+            "pop pointer 0",
+            "push this 0",
+            "return",
+            "function Box.scale 0",
+            "push argument 0",
+            "pop pointer 0",
+            "push this 0",
+            "push argument 1",
+            "call Math.multiply 2",
+            "return"};
+
+    private static Map<String, List<VMCommand>> program(String method, int nArgs, String... args) {
+        List<String> main = new ArrayList<>(List.of(
+                "function Main.main 1",
+                "push constant 5",
+                "call Box.new 1",
+                "pop local 0",
+                "push local 0"));
+        main.addAll(List.of(args));
+        main.addAll(List.of(
+                "call Box." + method + " " + nArgs,
+                "call Output.printInt 1",
+                "pop temp 0",
+                "push constant 0",
+                "return"));
+        Map<String, List<VMCommand>> program = new LinkedHashMap<>();
+        program.put("Main", parse(main.toArray(new String[0])));
+        program.put("Box", parse(BOX));
+        return program;
+    }
+
+    private static String run(Map<String, List<VMCommand>> program) {
+        VMInterpreter interpreter = new VMInterpreter();
+        interpreter.loadCode(text(program.get("Main")) + text(program.get("Box")));
+        Assert.assertTrue(interpreter.run(1000));
+        return interpreter.output();
+    }
+
+    @Test
+    public void inlinesAccessor() {
+        Map<String, List<VMCommand>> program = program("get", 1);
+        Inliner inliner = new Inliner();
+        inliner.inline(program);
+        String main = text(program.get("Main"));
+
+        Assert.assertEquals("inlined", 1, inliner.inlinedCalls());
+        Assert.assertFalse("no call", main.contains("Box.get"));
+        Assert.assertTrue("this goes through THAT", main.contains("pop pointer 1"));
+        Assert.assertEquals("output", "5", run(program));
+    }
+
+    @Test
+    public void keepsCallsInBody() {
+        Map<String, List<VMCommand>> program = program("scale", 2, "push constant 3");
+        Inliner inliner = new Inliner();
+        inliner.inline(program);
+
+        // Box.scale calls Math.multiply so it isn't a leaf
+        Assert.assertEquals("inlined", 0, inliner.inlinedCalls());
+        Assert.assertTrue("call", text(program.get("Main")).contains("call Box.scale 2"));
+        Assert.assertEquals("output", "15", run(program));
+    }
+}
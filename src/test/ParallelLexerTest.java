@@ -0,0 +1,59 @@
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ParallelLexerTest {
+    private static List<Tokenizer.Token> sequential(String source) throws IOException {
+        Tokenizer tokenizer = new Tokenizer(new StringReader(source));
+        List<Tokenizer.Token> tokens = new ArrayList<>();
+        while (tokenizer.hasMoreTokens()) {
+            tokenizer.advance();
+            tokens.add(new Tokenizer.Token(tokenizer.tokenType(), tokenizer.identifier()));
+        }
+        return tokens;
+    }
+
+    @Test
+    public void sameTokensAsOnePass() throws IOException {
+        // long comments and strings spanning lines, so chunks start inside them
+        StringBuilder sb = new StringBuilder("class Big {\n");
+        for (int i = 0; sb.length() < 8 * ParallelLexer.MIN_CHUNK; i++) {
+            sb.append("function int f").append(i).append("() {\n");
+            if (i % 3 == 0) sb.append("/* let x = 1;\n".repeat(200)).append("*/\n");
+            if (i % 5 == 0) sb.append("do Output.printString(\"").append("line\n".repeat(300)).append("\");\n");
+            sb.append("// return y;\n\treturn ").append(i).append(" / 2;\n}\n");
+        }
+        String source = sb.append("}\n").toString();
+
+        List<Tokenizer.Token> expected = sequential(source);
+        for (int nChunks : new int[]{1, 3, 8, 64}) {
+            Assert.assertEquals("chunks " + nChunks, expected, ParallelLexer.lex(source, nChunks));
+        }
+    }
+
+    @Test
+    public void compilesLexedClass() throws IOException {
+        StringBuilder sb = new StringBuilder("class Main {\n");
+        int n = 0;
+        while (sb.length() < 2 * ParallelLexer.MIN_CHUNK) {
+            sb.append("function int f").append(n).append("() {\n\treturn ").append(n).append(";\n}\n");
+            n++;
+        }
+        sb.append("function void main() {\n\tdo Output.printInt(Main.f1() + Main.f").append(n - 1).append("());\n")
+                .append("\treturn;\n}\n}\n");
+
+        Tokenizer tokenizer = new Tokenizer(ParallelLexer.lex(sb.toString(), 4));
+        tokenizer.advance();
+        StringWriter output = new StringWriter();
+        new CompilationEngine(tokenizer, output).compileClass();
+        VMInterpreter interpreter = new VMInterpreter();
+        interpreter.loadCode(output.toString());
+        Assert.assertTrue("finished", interpreter.run(1_000));
+        Assert.assertEquals("output", String.valueOf(n), interpreter.output());
+    }
+}
@@ -0,0 +1,37 @@
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PipelineTest {
+    @Test
+    public void keepsOrderThroughSmallQueues() throws IOException {
+        Path directory = Files.createTempDirectory("pipeline");
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Path file = directory.resolve("F" + i + ".txt");
+            Files.writeString(file, "x".repeat(i));
+            files.add(file);
+        }
+
+        Pipeline pipeline = new Pipeline(3, 1);
+        List<Integer> lengths = pipeline.read(files, source -> source.text().length());
+        for (int i = 0; i < 20; i++) Assert.assertEquals(i, (int) lengths.get(i));
+
+        pipeline.process(files, file -> file, file -> new Pipeline.Output(Path.of(file + ".out"), "done"));
+        for (Path file : files) Assert.assertEquals("done", Files.readString(Path.of(file + ".out")));
+    }
+
+    @Test
+    public void compressesGzFiles() throws IOException {
+        Path file = Files.createTempDirectory("pipeline").resolve("Main.vm.gz");
+        String text = "\tpush constant 0\n\tpop temp 0\n".repeat(100);
+        Pipeline.writeText(file, text);
+        Assert.assertTrue("compressed", Files.size(file) < text.length() / 10);
+        Assert.assertEquals(text, Pipeline.readText(file));
+    }
+}
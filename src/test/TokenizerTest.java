@@ -2,6 +2,7 @@ import junit.framework.Assert;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.io.StringReader;
 
 public class TokenizerTest {
     @Test
@@ -62,6 +63,60 @@ public class TokenizerTest {
         Assert.assertFalse(tokenizer.hasMoreTokens());
     }
 
+    @Test
+    public void peek() throws IOException {
+        Tokenizer tokenizer = new Tokenizer("src/test/resources/simpleToken.txt");
+        tokenizer.advance(); // class
+        Assert.assertEquals("next", "Main", tokenizer.peek(1).text());
+        Assert.assertTrue("after", tokenizer.peek(2).isSymbol('{'));
+        Assert.assertEquals("fourth", Tokenizer.TokenType.IDENTIFIER, tokenizer.peek(4).type());
+
+        // the peeked tokens come back in order, then lexing goes on past them
+        tokenizer.advance();
+        Assert.assertEquals("token", "Main", tokenizer.identifier());
+        tokenizer.advance();
+        tokenizer.advance();
+        tokenizer.advance();
+        Assert.assertEquals("token", "func", tokenizer.identifier());
+        Assert.assertTrue("paren", tokenizer.peek(1).isSymbol('('));
+        for (int i = 0; i < 6; i++) tokenizer.advance();
+        Assert.assertTrue("end", tokenizer.peek(1).isSymbol('}'));
+        Assert.assertNull("past the end", tokenizer.peek(2));
+        tokenizer.advance();
+        Assert.assertFalse(tokenizer.hasMoreTokens());
+    }
+
+    @Test
+    public void skipBlock() throws IOException {
+        String source = String.join("\n",
+                "class Main {",
+                "function void main() {",
+                "    // }",
+                "    if (true) { do Output.printString(\"}{\"); } /* } */",
+                "    return;",
+                "}",
+                "function int one() { return 1; }",
+                "}");
+        Tokenizer tokenizer = new Tokenizer(new StringReader(source));
+        for (int i = 0; i < 9; i++) tokenizer.advance();
+        Assert.assertEquals("body", '{', tokenizer.symbol());
+        tokenizer.skipBlock();
+        Assert.assertEquals("closing", '}', tokenizer.symbol());
+        tokenizer.advance();
+        Assert.assertEquals("next", Tokenizer.KeyWord.FUNCTION, tokenizer.keyWord());
+        tokenizer.advance();
+        tokenizer.advance();
+        Assert.assertEquals("name", "one", tokenizer.identifier());
+
+        // a body that was peeked into is searched from the first token peeked at
+        for (int i = 0; i < 3; i++) tokenizer.advance();
+        Assert.assertEquals("peeked", "1", tokenizer.peek(2).text());
+        tokenizer.skipBlock();
+        tokenizer.advance();
+        Assert.assertEquals("end", '}', tokenizer.symbol());
+        Assert.assertFalse(tokenizer.hasMoreTokens());
+    }
+
     @Test
     public void testString() throws IOException {
         Tokenizer tokenizer = new Tokenizer("src/test/resources/tokenStringIntConst.txt");
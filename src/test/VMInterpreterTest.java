@@ -0,0 +1,68 @@
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class VMInterpreterTest {
+    private static final String SUM_PROGRAM = String.join("\n",
+            "function Main.main 2",
+            "\tpush constant 0",
+            "\tpop local 0",
+            "\tpush constant 0",
+            "\tpop local 1",
+            "label L0",
+            "\tpush local 1",
+            "\tpush constant 5",
+            "\tlt",
+            "\tnot",
+            "\tif-goto L1",
+            "\tpush local 0",
+            "\tpush local 1",
+            "\tcall Main.double 1",
+            "\tadd",
+            "\tpop local 0",
+            "\tpush local 1",
+            "\tpush constant 1",
+            "\tadd",
+            "\tpop local 1",
+            "\tgoto L0",
+            "label L1",
+            "\tpush local 0",
+            "\tcall Output.printInt 1",
+            "\tpop temp 0",
+            "\tpush constant 0",
+            "\treturn",
+            "function Main.double 0",
+            "\tpush argument 0",
+            "\tpush constant 2",
+            "\tcall Math.multiply 2",
+            "\treturn");
+
+    @Test
+    public void runsProgram() {
+        VMInterpreter interpreter = new VMInterpreter();
+        interpreter.loadCode(SUM_PROGRAM);
+        Assert.assertTrue(interpreter.run(10_000));
+        Assert.assertEquals("output", "20", interpreter.output());
+        Assert.assertEquals("calls", 5, interpreter.callCount("Main.double"));
+        Assert.assertEquals("builtin calls", 5, interpreter.callCount("Math.multiply"));
+        Assert.assertEquals("main calls", 1, interpreter.callCount("Main.main"));
+    }
+
+    @Test
+    public void countsInstructions() {
+        VMInterpreter interpreter = new VMInterpreter();
+        interpreter.loadCode(String.join("\n",
+                "function Main.main 0",
+                "\tpush constant 7",
+                "\tcall String.new 1",
+                "\tpush constant 72",
+                "\tcall String.appendChar 2",
+                "\tpush constant 105",
+                "\tcall String.appendChar 2",
+                "\tcall Output.printString 1",
+                "label END",
+                "\tgoto END"));
+        Assert.assertFalse(interpreter.run(100));
+        Assert.assertEquals("output", "Hi", interpreter.output());
+        Assert.assertEquals("instructions", 100, interpreter.instructionCount());
+    }
+}